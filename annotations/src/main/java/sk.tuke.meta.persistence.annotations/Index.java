@@ -0,0 +1,17 @@
+package sk.tuke.meta.persistence.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Declares an index of the entity table. On a type the index consists of the given columns.
+ * On a field it consists of the column of the field, followed by the given columns if any.
+ * A type or field may declare several indexes.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.FIELD})
+@Repeatable(Indexes.class)
+public @interface Index {
+    String name() default ""; // Ak sa nezadá, použije sa idx_<tabuľka>_<stĺpce>
+    String[] columns() default {};
+    boolean unique() default false;
+}
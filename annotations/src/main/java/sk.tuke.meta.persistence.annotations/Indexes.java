@@ -0,0 +1,12 @@
+package sk.tuke.meta.persistence.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Container of repeated {@link Index} annotations.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.FIELD})
+public @interface Indexes {
+    Index[] value();
+}
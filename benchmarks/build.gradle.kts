@@ -0,0 +1,27 @@
+plugins {
+    id("java")
+}
+
+group = "sk.tuke.meta"
+version = "1.0-SNAPSHOT"
+
+repositories {
+    mavenCentral()
+}
+
+val jmhVersion = "1.37"
+
+dependencies {
+    implementation(project(":example"))
+    implementation(project(":persistence"))
+    implementation("org.openjdk.jmh:jmh-core:$jmhVersion")
+    annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+// Runs the benchmarks, JMH options are passed by --args, e.g. --args="ReadBenchmarks -p rows=1000"
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks of the persistence layer."
+    mainClass = "org.openjdk.jmh.Main"
+    classpath = sourceSets["main"].runtimeClasspath
+}
@@ -0,0 +1,114 @@
+package sk.tuke.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import sk.tuke.meta.example.Department;
+import sk.tuke.meta.example.Person;
+import sk.tuke.meta.persistence.GeneratedPersistenceManager;
+import sk.tuke.meta.persistence.PersistenceManager;
+import sk.tuke.meta.persistence.ReflectivePersistenceManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Database filled with persons, each referencing one of {@value #DEPARTMENTS} departments.
+ * The database is created once per trial for every combination of the parameters.
+ */
+@State(Scope.Benchmark)
+public class Database {
+    static final int DEPARTMENTS = 100;
+    private static final int BATCH_SIZE = 10_000;
+
+    /**
+     * Number of persons in the database.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    /**
+     * <code>memory</code> for an in-memory database, <code>file</code> for a temporary database file.
+     */
+    @Param({"memory", "file"})
+    public String storage;
+
+    /**
+     * <code>generated</code> for mappers generated by the annotation processor,
+     * <code>reflective</code> for reflective metadata.
+     */
+    @Param({"generated", "reflective"})
+    public String mapper;
+
+    private Path file;
+    private Connection connection;
+    private PersistenceManager manager;
+    private List<Department> departments;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        String url = "jdbc:sqlite::memory:";
+        if (storage.equals("file")) {
+            file = Files.createTempFile("persistence-benchmark", ".db");
+            url = "jdbc:sqlite:" + file;
+        }
+        connection = DriverManager.getConnection(url);
+        manager = mapper.equals("generated")
+                ? new GeneratedPersistenceManager(connection) : new ReflectivePersistenceManager(connection);
+        manager.createTables(Department.class, Person.class);
+
+        departments = new ArrayList<>();
+        for (int i = 0; i < DEPARTMENTS; i++) {
+            departments.add(new Department("Department " + i, "D" + i));
+        }
+        manager.saveAll(departments);
+        List<Person> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < rows; i++) {
+            batch.add(newPerson(i));
+            if (batch.size() == BATCH_SIZE || i == rows - 1) {
+                manager.saveAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        manager.close();
+        connection.close();
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public PersistenceManager manager() {
+        return manager;
+    }
+
+    /**
+     * @return id of a random person inserted by the setup
+     */
+    public long randomPersonId() {
+        return ThreadLocalRandom.current().nextLong(1, rows + 1);
+    }
+
+    /**
+     * @param number number used in the name of the person
+     * @return new person referencing one of the departments
+     */
+    public Person newPerson(int number) {
+        Person person = new Person("Name " + number, "Surname " + number, 20 + number % 50);
+        person.setDepartment(departments.get(number % DEPARTMENTS));
+        return person;
+    }
+}
@@ -0,0 +1,104 @@
+package sk.tuke.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sk.tuke.meta.example.Department;
+import sk.tuke.meta.example.Person;
+import sk.tuke.meta.example.Person_Mapper;
+import sk.tuke.meta.persistence.EntityMapper;
+import sk.tuke.meta.persistence.Ref;
+import sk.tuke.meta.persistence.ReflectivePersistenceManager;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the column values of an entity by a mapper, without any database access.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MapperBenchmarks {
+    /**
+     * <code>generated</code> for the mapper generated by the annotation processor,
+     * <code>reflective</code> for reflective metadata.
+     */
+    @Param({"generated", "reflective"})
+    public String mapper;
+
+    private Connection connection;
+    private EntityMapper<Person> personMapper;
+    private EntityMapper.Context context;
+    private Person person;
+
+    @Setup
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        personMapper = mapper.equals("generated")
+                ? new Person_Mapper()
+                : new ReflectiveMappers(connection).mapper(Person.class);
+        context = new IdContext();
+        Department department = new Department("Department", "D");
+        department.setId(1);
+        person = new Person("Name", "Surname", 30);
+        person.setDepartment(department);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    public Object[] values() {
+        return personMapper.values(person, context);
+    }
+
+    /**
+     * Reflective manager giving out the mappers it uses.
+     */
+    private static class ReflectiveMappers extends ReflectivePersistenceManager {
+        ReflectiveMappers(Connection connection) {
+            super(connection);
+        }
+
+        <T> EntityMapper<T> mapper(Class<T> type) {
+            return mapperFor(type);
+        }
+    }
+
+    /**
+     * Context which only knows the ids of departments.
+     */
+    private static class IdContext implements EntityMapper.Context {
+        @Override
+        public <R> R load(Class<R> type, long id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <R> Ref<R> reference(Class<R> type, long id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long idOf(Object entity) {
+            return ((Department) entity).getId();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package sk.tuke.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import sk.tuke.meta.example.Person;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixed workload of 80 % lookups, 15 % updates and 5 % inserts.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MixedBenchmarks {
+
+    @Benchmark
+    public Object readWrite(Database database, WriteBenchmarks.UpdatedPersons state) {
+        int operation = ThreadLocalRandom.current().nextInt(100);
+        if (operation < 80) {
+            return database.manager().get(Person.class, database.randomPersonId());
+        }
+        Person person = operation < 95 ? state.next() : database.newPerson(state.inserted++);
+        person.setAge(person.getAge() + 1);
+        database.manager().save(person);
+        return person;
+    }
+}
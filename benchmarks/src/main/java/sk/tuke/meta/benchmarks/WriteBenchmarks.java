@@ -0,0 +1,64 @@
+package sk.tuke.meta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sk.tuke.meta.example.Person;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert and update throughput. Inserted persons stay in the table until the end of the trial.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriteBenchmarks {
+    static final int UPDATED_PERSONS = 1000;
+
+    /**
+     * Persons loaded before each iteration, so updates do not include loading them.
+     */
+    @State(Scope.Thread)
+    public static class UpdatedPersons {
+        List<Person> persons;
+        int next;
+        int inserted;
+
+        @Setup(Level.Iteration)
+        public void load(Database database) {
+            persons = database.manager().getPage(Person.class, 0, UPDATED_PERSONS);
+        }
+
+        Person next() {
+            next = (next + 1) % persons.size();
+            return persons.get(next);
+        }
+    }
+
+    @Benchmark
+    public Person insert(Database database, UpdatedPersons state) {
+        Person person = database.newPerson(state.inserted++);
+        database.manager().save(person);
+        return person;
+    }
+
+    @Benchmark
+    public Person update(Database database, UpdatedPersons state) {
+        Person person = state.next();
+        person.setAge(person.getAge() + 1);
+        database.manager().save(person);
+        return person;
+    }
+}
@@ -1,8 +1,13 @@
 package sk.tuke.meta.example;
 
+import sk.tuke.meta.persistence.annotations.Index;
+import sk.tuke.meta.persistence.annotations.Table;
+
+@Table
 public class Department {
     private long id;
     private String name;
+    @Index(unique = true)
     private String code;
 
     public Department() {
@@ -17,6 +22,10 @@ public class Department {
         return id;
     }
 
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
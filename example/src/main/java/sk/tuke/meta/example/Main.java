@@ -1,7 +1,7 @@
 package sk.tuke.meta.example;
 
 import sk.tuke.meta.persistence.PersistenceManager;
-import sk.tuke.meta.persistence.ReflectivePersistenceManager;
+import sk.tuke.meta.persistence.GeneratedPersistenceManager;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -14,7 +14,7 @@ public class Main {
     public static void main(String[] args) throws Exception {
         Connection conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
 
-        PersistenceManager manager = new ReflectivePersistenceManager(conn);
+        PersistenceManager manager = new GeneratedPersistenceManager(conn);
 
         manager.createTables(Person.class, Department.class);
 
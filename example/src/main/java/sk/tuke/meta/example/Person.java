@@ -1,8 +1,10 @@
 package sk.tuke.meta.example;
 
+import sk.tuke.meta.persistence.annotations.Index;
 import sk.tuke.meta.persistence.annotations.Table;
 
-@Table(name = "clovek") //c
+@Table
+@Index(columns = {"surname", "name"})
 public class Person {
     private long id;
     private String surname;
@@ -14,9 +16,9 @@ public class Person {
     public Person() {
     }
 
-    public Person(String surname, String name, int age) {
-        this.surname = surname;
+    public Person(String name, String surname, int age) {
         this.name = name;
+        this.surname = surname;
         this.age = age;
     }
 
@@ -24,6 +26,10 @@ public class Person {
         return id;
     }
 
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getSurname() {
         return surname;
     }
@@ -0,0 +1,48 @@
+package sk.tuke.meta.example;
+
+import sk.tuke.meta.persistence.Ref;
+import sk.tuke.meta.persistence.annotations.Table;
+
+@Table
+public class Project {
+    private long id;
+    private String name;
+    private Ref<Department> department;
+
+    public Project() {
+    }
+
+    public Project(String name, Department department) {
+        this.name = name;
+        this.department = department == null ? null : Ref.of(department);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Ref<Department> getDepartmentRef() {
+        return department;
+    }
+
+    public Department getDepartment() {
+        return department == null ? null : department.get();
+    }
+
+    public void setDepartment(Department department) {
+        this.department = department == null ? null : Ref.of(department);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Project %d: %s (%s)", id, name, department);
+    }
+}
@@ -0,0 +1,100 @@
+package sk.tuke.meta.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sk.tuke.meta.persistence.AsyncPersistenceManager;
+import sk.tuke.meta.persistence.PersistenceException;
+import sk.tuke.meta.persistence.PooledPersistenceManager;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncManagerTests {
+    @TempDir
+    Path directory;
+    private AsyncPersistenceManager manager;
+
+    @BeforeEach
+    void setUp() {
+        var pool = new PooledPersistenceManager("jdbc:sqlite:" + directory.resolve("async.db"), 2);
+        pool.createTables(Department.class, Person.class);
+        manager = new AsyncPersistenceManager(pool);
+    }
+
+    @AfterEach
+    void tearDown() {
+        manager.close();
+    }
+
+    @Test
+    void writesRunInSubmissionOrder() throws Exception {
+        List<CompletableFuture<Department>> saves = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            saves.add(manager.saveAsync(new Department("Department " + i, "D" + i)));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, saves.get(i).get().getId());
+        }
+        var department = manager.getAsync(Department.class, 3).get().get();
+        assertEquals("D2", department.getCode());
+        manager.deleteAsync(department).get();
+        assertEquals(9, manager.getAllAsync(Department.class).get().size());
+    }
+
+    @Test
+    void saveAllAsyncSavesReferences() throws Exception {
+        var department = new Department("Development", "DEV");
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(department);
+        manager.saveAllAsync(List.of(person, department)).get();
+        var loaded = manager.getAsync(Person.class, person.getId()).get().get();
+        assertEquals("DEV", loaded.getDepartment().getCode());
+    }
+
+    @Test
+    void failureCompletesFutureExceptionally() {
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(new Department("Development", "DEV"));
+        var failure = assertThrows(ExecutionException.class, () -> manager.saveAsync(person).get());
+        assertInstanceOf(PersistenceException.class, failure.getCause());
+    }
+
+    @Test
+    void closeWaitsForReadsOnCallerExecutor() throws Exception {
+        manager.close();
+        var pool = new PooledPersistenceManager("jdbc:sqlite:" + directory.resolve("async.db"), 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            manager = new AsyncPersistenceManager(pool, executor);
+            manager.saveAsync(new Department("Development", "DEV")).get();
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            executor.submit(() -> {
+                started.countDown();
+                release.await(); // Delays the read queued after it
+                return null;
+            });
+            started.await();
+            var read = manager.getAllAsync(Department.class);
+            var closed = CompletableFuture.runAsync(manager::close);
+            Thread.sleep(50);
+            assertFalse(closed.isDone());
+            release.countDown();
+            closed.get();
+            assertEquals(1, read.get().size());
+            assertTrue(manager.getAsync(Department.class, 1).isCompletedExceptionally());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package sk.tuke.meta.example;
+
+import org.junit.jupiter.api.Test;
+import sk.tuke.meta.persistence.GeneratedPersistenceManager;
+import sk.tuke.meta.persistence.PersistenceManager;
+import sk.tuke.meta.persistence.SchemaCatalog;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeneratedManagerTests extends ReflectiveManagerTests {
+
+    @Override
+    PersistenceManager createManager(Connection connection) {
+        return new GeneratedPersistenceManager(connection);
+    }
+
+    @Test
+    void entitiesHaveGeneratedMappers() {
+        assertTrue(GeneratedPersistenceManager.hasGeneratedMapper(Person.class));
+        assertTrue(GeneratedPersistenceManager.hasGeneratedMapper(Department.class));
+    }
+
+    @Test
+    void generatedSchemaCreatesIndexes() throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            createManager(connection).createTables();
+            var rs = connection.createStatement().executeQuery(
+                    "select name from sqlite_master where type='index' and name like 'idx_%' order by name");
+            var names = new java.util.ArrayList<String>();
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+            assertEquals(java.util.List.of("idx_Department_code", "idx_Person_department",
+                    "idx_Person_surname_name", "idx_Project_department"), names);
+        }
+    }
+
+    @Test
+    void schemaCatalogListsReferencedTablesFirst() {
+        List<Class<?>> types = SchemaCatalog.findTables(getClass().getClassLoader()).stream()
+                .map(SchemaCatalog.TableDefinition::type).collect(Collectors.toList());
+        assertEquals(Set.of(Department.class, Person.class, Project.class), Set.copyOf(types));
+        assertTrue(types.indexOf(Department.class) < types.indexOf(Person.class));
+        assertTrue(types.indexOf(Department.class) < types.indexOf(Project.class));
+    }
+
+    @Test
+    void createTablesKeepsExistingTables() throws SQLException {
+        try (var connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            connection.createStatement().execute("CREATE TABLE \"department\" (id INTEGER PRIMARY KEY, legacy TEXT)");
+            createManager(connection).createTables();
+            var rs = connection.createStatement().executeQuery(
+                    "select name from sqlite_master where type in ('table', 'index') order by name");
+            var names = new java.util.ArrayList<String>();
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+            // The existing table is not recreated, so its indexes are not created either
+            assertEquals(List.of("Person", "Project", "department", "idx_Person_department",
+                    "idx_Person_surname_name", "idx_Project_department", "sqlite_sequence"), names);
+        }
+    }
+
+    @Test
+    void classWithoutTableHasNoGeneratedMapper() {
+        assertFalse(GeneratedPersistenceManager.hasGeneratedMapper(Main.class));
+    }
+}
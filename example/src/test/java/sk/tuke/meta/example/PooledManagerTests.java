@@ -0,0 +1,194 @@
+package sk.tuke.meta.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sk.tuke.meta.persistence.GeneratedPersistenceManager;
+import sk.tuke.meta.persistence.LruEntityCache;
+import sk.tuke.meta.persistence.PersistenceException;
+import sk.tuke.meta.persistence.PooledPersistenceManager;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PooledManagerTests {
+    @TempDir
+    Path directory;
+    private String url;
+    private PooledPersistenceManager manager;
+
+    @BeforeEach
+    void setUp() {
+        url = "jdbc:sqlite:" + directory.resolve("pool.db");
+        manager = new PooledPersistenceManager(url, 2);
+        manager.createTables(Department.class, Person.class, Project.class);
+        var department = new Department("Development", "DEV");
+        manager.save(department);
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(department);
+        manager.saveAll(List.of(person, new Project("Migration", department)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        manager.close();
+    }
+
+    @Test
+    void usesWalJournal() throws SQLException {
+        try (var connection = DriverManager.getConnection(url);
+             var rs = connection.createStatement().executeQuery("PRAGMA journal_mode")) {
+            assertTrue(rs.next());
+            assertEquals("wal", rs.getString(1));
+        }
+    }
+
+    @Test
+    void readsSeeCommittedWrites() {
+        var person = manager.get(Person.class, 1).get();
+        assertEquals("Development", person.getDepartment().getName());
+        person.setAge(1500);
+        manager.save(person);
+        assertEquals(1500, manager.getAll(Person.class).get(0).getAge());
+        manager.delete(person);
+        assertTrue(manager.get(Person.class, 1).isEmpty());
+        assertEquals(2, manager.idleReaderCount());
+    }
+
+    @Test
+    void failedCommitRollsBackAndReleasesWriter() throws SQLException {
+        manager.close();
+        List<Connection> connections = new ArrayList<>();
+        manager = new PooledPersistenceManager(url, 1, connection -> {
+            connections.add(connection);
+            return new GeneratedPersistenceManager(connection);
+        });
+        Connection writer = connections.get(0);
+        try (var statement = writer.createStatement()) {
+            statement.execute("PRAGMA foreign_keys = ON");
+        }
+        var department = new Department("Operations", "OPS");
+        var person = new Person("Jozko", "Mrkvicka", 1200);
+        person.setDepartment(department);
+        assertThrows(PersistenceException.class, () -> manager.inTransaction(transaction -> {
+            transaction.save(department);
+            transaction.save(person);
+            try (var statement = writer.createStatement()) {
+                // The foreign key of the person is violated, but checked only by the commit
+                statement.execute("PRAGMA defer_foreign_keys = ON");
+                statement.execute("DELETE FROM Department WHERE id = " + department.getId());
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        assertEquals(0, department.getId());
+        assertEquals(0, person.getId());
+        assertEquals(1, manager.getAll(Person.class).size());
+        // Another thread can write only if the rollback released the writer
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> manager.save(new Department("Sales", "SAL")));
+        assertEquals(2, manager.getAll(Department.class).size());
+    }
+
+    @Test
+    void entityCachedByReaderDuringTransactionIsEvictedByCommit() throws Exception {
+        manager.setEntityCache(new LruEntityCache().configure(Department.class, 10, null));
+        var department = manager.get(Department.class, 1).get();
+        manager.begin();
+        department.setName("Research");
+        manager.save(department);
+        // A reader of another thread caches the committed row, which the transaction replaces
+        assertEquals("Development", CompletableFuture.supplyAsync(
+                () -> manager.get(Department.class, 1).get().getName()).get());
+        manager.commit();
+        assertEquals("Research", manager.get(Department.class, 1).get().getName());
+    }
+
+    @Test
+    void concurrentReadsAndWrites() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> manager.save(new Department("Department " + index, "D" + index))));
+                futures.add(executor.submit(() -> assertEquals("Janko", manager.get(Person.class, 1).get().getName())));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(21, manager.getAll(Department.class).size());
+        assertEquals(2, manager.idleReaderCount());
+    }
+
+    @Test
+    void streamKeepsReaderUntilClosed() {
+        try (var departments = manager.stream(Department.class)) {
+            assertEquals(1, manager.idleReaderCount());
+            assertEquals(1, departments.count());
+        }
+        assertEquals(2, manager.idleReaderCount());
+    }
+
+    @Test
+    void lazyReferenceIsLoadedThroughPool() {
+        var project = manager.get(Project.class, 1).get();
+        assertFalse(project.getDepartmentRef().isLoaded());
+        assertEquals("DEV", project.getDepartment().getCode());
+        assertEquals(2, manager.idleReaderCount());
+    }
+
+    @Test
+    void lazyReferenceIsLoadedWhileStreamHoldsLastReader() {
+        var pool = new PooledPersistenceManager(url, 1);
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try (var projects = pool.stream(Project.class)) {
+                    assertEquals(List.of("DEV"), projects.map(project -> project.getDepartment().getCode()).toList());
+                }
+            });
+            assertEquals(1, pool.idleReaderCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    void transactionReadsItsOwnWrites() throws Exception {
+        manager.begin();
+        try {
+            manager.save(new Department("Operations", "OPS"));
+            assertEquals(2, manager.getAll(Department.class).size());
+            // Other threads read the committed state
+            var executor = Executors.newSingleThreadExecutor();
+            try {
+                assertEquals(1, executor.submit(() -> manager.getAll(Department.class).size()).get());
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            manager.commit();
+        }
+        assertEquals(2, manager.getAll(Department.class).size());
+    }
+
+    @Test
+    void failedReadReturnsReader() {
+        assertThrows(PersistenceException.class, () -> manager.get(Main.class, 1));
+        assertEquals(2, manager.idleReaderCount());
+    }
+}
@@ -2,18 +2,37 @@ package sk.tuke.meta.example;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import sk.tuke.meta.persistence.CacheStatistics;
+import sk.tuke.meta.persistence.DefaultPersistenceMetrics;
+import sk.tuke.meta.persistence.LatencyHistogram;
+import sk.tuke.meta.persistence.LruEntityCache;
 import sk.tuke.meta.persistence.PersistenceException;
 import sk.tuke.meta.persistence.PersistenceManager;
+import sk.tuke.meta.persistence.PersistenceMetrics;
+import sk.tuke.meta.persistence.PersistenceMetricsMXBean;
 import sk.tuke.meta.example.Department;
 import sk.tuke.meta.example.Person;
 import sk.tuke.meta.persistence.ReflectivePersistenceManager;
-
+import sk.tuke.meta.persistence.SlowQueryLog;
+
+import javax.management.JMX;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static sk.tuke.meta.persistence.Query.Operator.*;
 
 class ReflectiveManagerTests {
     private Connection connection;
@@ -24,7 +43,7 @@ class ReflectiveManagerTests {
         connection = DriverManager.getConnection("jdbc:sqlite::memory:");
 
         //create tables
-        manager = new ReflectivePersistenceManager(connection);
+        manager = createManager(connection);
         manager.createTables(Department.class, Person.class);
 
         //insert testing data
@@ -40,6 +59,10 @@ class ReflectiveManagerTests {
         executeSqlScript(data);
     }
 
+    PersistenceManager createManager(Connection connection) {
+        return new ReflectivePersistenceManager(connection);
+    }
+
     @Test
     void getDepartment() {
         var result = manager.get(Department.class, 1);
@@ -124,6 +147,82 @@ class ReflectiveManagerTests {
         assertPersonValue(persons.get(1), 2, "Jozko", "Mrkvicka", 1200);
     }
 
+    @Test
+    void getPagesOfDepartments() throws SQLException {
+        executeSqlScript("insert into Department(name, code) values ('Marketing', 'MRK');" +
+                "insert into Department(name, code) values ('Sales', 'SAL');" +
+                "insert into Department(name, code) values ('Support', 'SUP')");
+        var first = manager.getPage(Department.class, 0, 2);
+        assertEquals(2, first.size());
+        assertDepartmentValue(first.get(1), 2, "Operations", "OPS");
+        var second = manager.getPage(Department.class, first.get(1).getId(), 2);
+        assertEquals(List.of(3L, 4L), second.stream().map(Department::getId).toList());
+        var last = manager.getPage(Department.class, second.get(1).getId(), 2);
+        assertEquals(1, last.size());
+        assertDepartmentValue(last.get(0), 5, "Support", "SUP");
+        assertEquals(List.of(), manager.getPage(Department.class, 5, 2));
+    }
+
+    @Test
+    void pageLimitMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> manager.getPage(Department.class, 0, -1));
+        assertThrows(IllegalArgumentException.class, () -> manager.getPageDescending(Person.class, Long.MAX_VALUE, 0));
+    }
+
+    @Test
+    void getDescendingPagesOfPersons() {
+        var first = manager.getPageDescending(Person.class, Long.MAX_VALUE, 1);
+        assertPersonValue(first.get(0), 2, "Jozko", "Mrkvicka", 1200);
+        var second = manager.getPageDescending(Person.class, 2, 5);
+        assertEquals(1, second.size());
+        assertPersonValue(second.get(0), 1, "Janko", "Hrasko", 1000);
+        assertDepartmentValue(second.get(0).getDepartment(), 1, "Development", "DEV");
+    }
+
+    @Test
+    void streamPersons() {
+        try (var persons = manager.stream(Person.class)) {
+            var list = persons.toList();
+            assertEquals(2, list.size());
+            assertPersonValue(list.get(0), 1, "Janko", "Hrasko", 1000);
+            assertDepartmentValue(list.get(0).getDepartment(), 1, "Development", "DEV");
+            assertPersonValue(list.get(1), 2, "Jozko", "Mrkvicka", 1200);
+        }
+    }
+
+    @Test
+    void streamReadsRowsLazily() throws SQLException {
+        try (var departments = manager.stream(Department.class)) {
+            var iterator = departments.iterator();
+            assertDepartmentValue(iterator.next(), 1, "Development", "DEV");
+            assertDepartmentValue(iterator.next(), 2, "Operations", "OPS");
+            assertFalse(iterator.hasNext());
+        }
+        // The statement is returned to the cache when the stream is closed
+        try (var departments = manager.stream(Department.class)) {
+            assertEquals(2, departments.count());
+        }
+        assertEquals(1, ((ReflectivePersistenceManager) manager).statementCache().hitCount());
+    }
+
+    @Test
+    void streamLoadsReferencesPerChunk() {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        var log = new SlowQueryLog(Duration.ZERO, 100, false);
+        reflectiveManager.setSlowQueryLog(log);
+        reflectiveManager.setFetchSize(1);
+        try (var persons = manager.stream(Person.class)) {
+            var iterator = persons.iterator();
+            assertEquals(0, log.count()); // No reference is loaded before the first row is read
+            assertDepartmentValue(iterator.next().getDepartment(), 1, "Development", "DEV");
+            assertEquals(1, log.count());
+            assertTrue(log.slowest().get(0).sql().contains("FROM \"Department\" WHERE \"id\" IN"));
+            assertNull(iterator.next().getDepartment());
+            assertEquals(2, log.count()); // The second chunk loads its own references
+            assertFalse(iterator.hasNext());
+        }
+    }
+
     @Test
     void deleteDepartmentThrowsExceptionWhenAttached() {
         var departments = manager.getAll(Department.class);
@@ -160,6 +259,20 @@ class ReflectiveManagerTests {
         assertNull(persons.get(1).getDepartment());
     }
 
+    @Test
+    void getAllPersonsLoadsDepartmentsWithOneQuery() throws SQLException {
+        executeSqlScript("insert into Person(name, surname, age, department) values ('Anka', 'Repova', 30, 1);" +
+                "insert into Person(name, surname, age, department) values ('Ferko', 'Kapustka', 40, 2);");
+        var persons = manager.getAll(Person.class);
+        assertEquals(4, persons.size());
+        assertDepartmentValue(persons.get(2).getDepartment(), 1, "Development", "DEV");
+        assertDepartmentValue(persons.get(3).getDepartment(), 2, "Operations", "OPS");
+        // Departments are not loaded one by one through the cached get statement
+        var statements = ((ReflectivePersistenceManager) manager).statementCache();
+        assertEquals(1, statements.size());
+        assertEquals(0, statements.hitCount());
+    }
+
     @Test
     void saveNewPerson() throws SQLException {
         var person = new Person("Ferko", "Kapustka", 2000);
@@ -217,6 +330,546 @@ class ReflectiveManagerTests {
         assertSqlHasResult(sql);
     }
 
+    @Test
+    void saveAllInsertsReferencedEntitiesFirst() throws SQLException {
+        var department = new Department("Marketing", "MRK");
+        var first = new Person("Ferko", "Kapustka", 2000);
+        var second = new Person("Anka", "Repova", 3000);
+        first.setDepartment(department);
+        second.setDepartment(department);
+        manager.saveAll(List.of(first, department, second));
+        assertEquals(3, department.getId());
+        assertEquals(3, first.getId());
+        assertEquals(4, second.getId());
+        assertSqlHasResult("select * from person where id=4 and name='Anka' and department=3");
+        assertSqlHasResult("select * from Department where id=3 and code='MRK'");
+    }
+
+    @Test
+    void saveAllAssignsIdsOfNonContiguousRows() throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute("create trigger copy_department after insert on Department when new.code = 'QA'\n" +
+                    "  begin insert into Department(name, code) values (new.name, 'QA2'); end");
+        }
+        var quality = new Department("Quality", "QA");
+        var research = new Department("Research", "RES");
+        manager.saveAll(List.of(quality, research));
+        assertEquals(3, quality.getId());
+        assertEquals(5, research.getId());
+        assertSqlHasResult("select * from Department where id=5 and code='RES'");
+    }
+
+    @Test
+    void saveAllUpdatesExistingEntities() throws SQLException {
+        var persons = manager.getAll(Person.class);
+        persons.forEach(person -> person.setAge(42));
+        var newPerson = new Person("Ferko", "Kapustka", 2000);
+        manager.saveAll(List.of(persons.get(0), persons.get(1), newPerson));
+        assertEquals(3, newPerson.getId());
+        assertSqlHasResult("select * from person where id=1 and age=42");
+        assertSqlHasResult("select * from person where id=2 and age=42");
+    }
+
+    @Test
+    void failedSaveAllRollsBack() throws SQLException {
+        var saved = new Person("Ferko", "Kapustka", 2000);
+        var invalid = new Person("Anka", "Repova", 3000);
+        invalid.setDepartment(new Department("Marketing", "MRK"));
+        assertThrows(PersistenceException.class, () -> manager.saveAll(List.of(saved, invalid)));
+        assertEquals(0, saved.getId());
+        assertEquals(2, manager.getAll(Person.class).size());
+    }
+
+    @Test
+    void upsertInsertsOrUpdatesByAssignedId() throws SQLException {
+        var department = new Department("Research", "RES");
+        department.setId(10);
+        manager.upsert(department);
+        var existing = new Department("Development Center", "DEV");
+        existing.setId(1);
+        manager.upsert(existing);
+
+        assertDepartmentValue(manager.get(Department.class, 10).get(), 10, "Research", "RES");
+        assertSqlHasResult("select * from Department where id = 1 and name = 'Development Center'");
+        assertEquals(3, manager.query(Department.class).count());
+        assertThrows(PersistenceException.class, () -> manager.upsert(new Department("Sales", "SAL")));
+    }
+
+    @Test
+    void upsertAllWritesReferencedEntitiesFirst() throws SQLException {
+        var department = new Department("Research", "RES");
+        department.setId(20);
+        var person = new Person("Peter", "Novak", 40);
+        person.setId(30);
+        person.setDepartment(department);
+        var updated = new Person("Janko", "Hrasko", 1001);
+        updated.setId(1);
+
+        manager.upsertAll(List.of(person, updated, department));
+        assertSqlHasResult("select * from Person where id = 30 and department = 20");
+        assertSqlHasResult("select * from Person where id = 1 and age = 1001 and department is null");
+        assertEquals(3, manager.query(Person.class).count());
+    }
+
+    @Test
+    void deleteAllDeletesIdsInChunks() throws SQLException {
+        List<Person> persons = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            persons.add(new Person("Novak", "Peter " + i, i));
+        }
+        manager.saveAll(persons);
+        long[] ids = persons.stream().mapToLong(Person::getId).toArray();
+
+        assertEquals(1200, manager.deleteAll(Person.class, ids));
+        assertEquals(2, manager.query(Person.class).count());
+        assertEquals(1, manager.deleteAll(Person.class, 2, 404));
+        assertEquals(0, manager.deleteAll(Person.class));
+        assertSqlHasResult("select * from Person where id = 1");
+    }
+
+    @Test
+    void deleteWhereEvictsDeletedEntities() throws SQLException {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        reflectiveManager.setEntityCache(new LruEntityCache().configure(Department.class, 10, null));
+        manager.get(Department.class, 2); // Cached
+        executeSqlScript("insert into Department(name, code) values ('Sales', 'SAL');");
+
+        assertEquals(1, manager.query(Department.class).orderByDescending("name").limit(1).delete());
+        assertEquals(List.of("Development", "Operations"),
+                manager.getAll(Department.class).stream().map(Department::getName).toList());
+        try (var session = reflectiveManager.openSession()) {
+            assertEquals(1, manager.query(Department.class).where("code", EQ, "OPS").delete());
+            assertTrue(manager.get(Department.class, 2).isEmpty()); // Not served by the cache
+            manager.get(Person.class, 1);
+            manager.get(Person.class, 2);
+            assertEquals(3, session.size());
+            assertEquals(1, manager.query(Person.class).where("department", EQ, null).delete());
+            assertEquals(2, session.size()); // The deleted person is no longer tracked
+        }
+    }
+
+    @Test
+    void closingSessionAgainKeepsNewerSession() {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        var first = reflectiveManager.openSession();
+        first.close();
+        try (var second = reflectiveManager.openSession()) {
+            first.close();
+            assertSame(second, reflectiveManager.currentSession().orElseThrow());
+        }
+        assertTrue(reflectiveManager.currentSession().isEmpty());
+    }
+
+    @Test
+    void sessionReturnsSameInstances() {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        try (var session = reflectiveManager.openSession()) {
+            executeSqlScript("insert into Person(name, surname, age, department) values ('Anka', 'Repova', 30, 1)");
+            var persons = manager.getAll(Person.class);
+            var department = manager.get(Department.class, 1).get();
+            assertSame(department, persons.get(0).getDepartment());
+            assertSame(department, persons.get(2).getDepartment());
+            assertSame(persons.get(1), manager.get(Person.class, 2).get());
+            assertEquals(4, session.size());
+        } catch (SQLException e) {
+            fail(e);
+        }
+        assertTrue(reflectiveManager.currentSession().isEmpty());
+        assertNotSame(manager.get(Department.class, 1).get(), manager.get(Department.class, 1).get());
+    }
+
+    @Test
+    void sessionTracksSavedAndForgetsDeletedEntities() {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        try (var session = reflectiveManager.openSession()) {
+            var department = new Department("Marketing", "MRK");
+            manager.save(department);
+            assertSame(department, manager.get(Department.class, 3).get());
+            var person = manager.get(Person.class, 2).get();
+            manager.delete(person);
+            assertTrue(manager.get(Person.class, 2).isEmpty());
+        }
+    }
+
+    @Test
+    void sessionUpdatesOnlyChangedColumns() throws SQLException {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        var metrics = new DefaultPersistenceMetrics();
+        reflectiveManager.setMetrics(metrics);
+        try (var session = reflectiveManager.openSession()) {
+            var person = manager.get(Person.class, 1).get();
+            manager.save(person); // Unchanged, nothing is written
+            person.setAge(31);
+            executeSqlScript("update Person set name = 'Jan' where id = 1;");
+            manager.save(person); // Only the age is written, the name changed in the database is kept
+            manager.saveAll(List.of(person));
+        }
+        assertSqlHasResult("select * from Person where id = 1 and name = 'Jan' and age = 31");
+        var persons = metrics.entityStatistics(Person.class);
+        assertEquals(2, persons.skippedUpdates());
+        assertEquals(1, persons.partialUpdates());
+        assertEquals(1, persons.rowsWritten());
+    }
+
+    @Test
+    void rolledBackUpdateIsWrittenAgain() throws SQLException {
+        var reflectiveManager = (ReflectivePersistenceManager) manager;
+        try (var session = reflectiveManager.openSession()) {
+            var department = manager.get(Department.class, 1).get();
+            department.setName("Research");
+            manager.begin();
+            manager.save(department);
+            manager.rollback();
+            manager.save(department);
+        }
+        assertSqlHasResult("select * from Department where id = 1 and name = 'Research'");
+    }
+
+    @Test
+    void entityCacheServesRepeatedGet() throws SQLException {
+        var cache = new LruEntityCache().configure(Department.class, 10, null);
+        ((ReflectivePersistenceManager) manager).setEntityCache(cache);
+        var department = manager.get(Department.class, 1).get();
+        department.setName("Modified");
+        connection.prepareStatement("update Department set name='Changed' where id=1").executeUpdate();
+        var cached = manager.get(Department.class, 1).get();
+        assertNotSame(department, cached); // Every hit creates its own instance
+        assertDepartmentValue(cached, 1, "Development", "DEV");
+        assertEquals(new CacheStatistics(1, 1, 0, 1), cache.statistics(Department.class));
+        assertEquals(CacheStatistics.EMPTY, cache.statistics(Person.class));
+    }
+
+    @Test
+    void entityCacheSkipsRowsReadInCallerTransaction() throws SQLException {
+        var cache = new LruEntityCache().configure(Department.class, 10, null);
+        ((ReflectivePersistenceManager) manager).setEntityCache(cache);
+        connection.setAutoCommit(false);
+        connection.prepareStatement("update Department set name='Uncommitted' where id=1").executeUpdate();
+        assertEquals("Uncommitted", manager.get(Department.class, 1).get().getName());
+        connection.rollback();
+        connection.setAutoCommit(true);
+        assertEquals(0, cache.statistics(Department.class).size());
+        assertEquals("Development", manager.get(Department.class, 1).get().getName());
+    }
+
+    @Test
+    void failedSaveAllInCallerTransactionKeepsIds() throws SQLException {
+        var department = new Department("Research", "RES");
+        var person = new Person("Jozko", "Mrkvicka", 1200);
+        person.setDepartment(new Department("Marketing", "MKT"));
+        connection.setAutoCommit(false);
+        assertThrows(PersistenceException.class, () -> manager.saveAll(List.of(department, person)));
+        assertNotEquals(0, department.getId()); // The row still exists in the transaction of the caller
+        assertTrue(manager.get(Department.class, department.getId()).isPresent());
+        connection.rollback();
+        connection.setAutoCommit(true);
+    }
+
+    @Test
+    void entityCacheIsInvalidatedBySaveAndDelete() {
+        var cache = new LruEntityCache().configure(Person.class, 10, null);
+        ((ReflectivePersistenceManager) manager).setEntityCache(cache);
+        var person = manager.get(Person.class, 1).get();
+        person.setAge(1500);
+        manager.save(person);
+        assertEquals(0, cache.statistics(Person.class).size());
+        assertEquals(1500, manager.get(Person.class, 1).get().getAge());
+        manager.delete(person);
+        assertTrue(manager.get(Person.class, 1).isEmpty());
+    }
+
+    @Test
+    void entityCacheEvictsLeastRecentlyUsed() {
+        var cache = new LruEntityCache().configure(Department.class, 1, null);
+        ((ReflectivePersistenceManager) manager).setEntityCache(cache);
+        manager.get(Department.class, 1);
+        manager.get(Department.class, 2);
+        manager.get(Department.class, 1);
+        assertEquals(new CacheStatistics(0, 3, 2, 1), cache.statistics(Department.class));
+    }
+
+    @Test
+    void repeatedGetReusesPreparedStatement() {
+        var statements = ((ReflectivePersistenceManager) manager).statementCache();
+        manager.get(Department.class, 1);
+        long misses = statements.missCount();
+        long hits = statements.hitCount();
+        manager.get(Department.class, 2);
+        manager.get(Department.class, 404);
+        assertEquals(misses, statements.missCount());
+        assertEquals(hits + 2, statements.hitCount());
+    }
+
+    @Test
+    void closeReleasesCachedStatements() {
+        manager.getAll(Person.class);
+        var statements = ((ReflectivePersistenceManager) manager).statementCache();
+        assertTrue(statements.size() > 0);
+        manager.close();
+        assertEquals(0, statements.size());
+    }
+
+    @Test
+    void createTablesCreatesIndexes() throws SQLException {
+        assertSqlHasResult("select * from sqlite_master where type='index' and name='idx_Person_surname_name'");
+        assertSqlHasResult("select * from sqlite_master where type='index' and name='idx_Person_department'");
+        assertSqlHasResult("select * from sqlite_master where type='index' and name='idx_Department_code'"
+                + " and sql like 'CREATE UNIQUE INDEX%'");
+    }
+
+    @Test
+    void queryFiltersAndOrdersInDatabase() throws SQLException {
+        executeSqlScript("insert into Person(name, surname, age, department) values ('Anka', 'Repova', 30, 1);" +
+                "insert into Person(name, surname, age, department) values ('Ferko', 'Kapustka', 1500, 2);");
+        var persons = manager.query(Person.class).where("age", GT, 100).orderBy("surname").limit(2).list();
+        assertEquals(2, persons.size());
+        assertPersonValue(persons.get(0), 1, "Janko", "Hrasko", 1000);
+        assertPersonValue(persons.get(1), 4, "Ferko", "Kapustka", 1500);
+        assertDepartmentValue(persons.get(1).getDepartment(), 2, "Operations", "OPS");
+        var oldest = manager.query(Person.class).orderByDescending("age").first();
+        assertPersonValue(oldest.get(), 4, "Ferko", "Kapustka", 1500);
+        assertEquals(3, manager.query(Person.class).where("age", GE, 1000).count());
+    }
+
+    @Test
+    void queryByReference() {
+        var development = manager.get(Department.class, 1).get();
+        var persons = manager.query(Person.class).where("department", EQ, development).list();
+        assertEquals(1, persons.size());
+        assertPersonValue(persons.get(0), 1, "Janko", "Hrasko", 1000);
+        var withoutDepartment = manager.query(Person.class).where("department", EQ, null)
+                .and("name", LIKE, "Jo%").list();
+        assertEquals(1, withoutDepartment.size());
+        assertPersonValue(withoutDepartment.get(0), 2, "Jozko", "Mrkvicka", 1200);
+    }
+
+    @Test
+    void queryReusesPreparedStatement() {
+        var statements = ((ReflectivePersistenceManager) manager).statementCache();
+        manager.query(Department.class).where("code", EQ, "DEV").list();
+        long misses = statements.missCount();
+        var operations = manager.query(Department.class).where("code", EQ, "OPS").list();
+        assertDepartmentValue(operations.get(0), 2, "Operations", "OPS");
+        assertEquals(misses, statements.missCount());
+    }
+
+    @Test
+    void queryWithUnknownColumnThrowsException() {
+        assertThrows(PersistenceException.class, () -> manager.query(Person.class).where("salary", GT, 10).list());
+        assertThrows(PersistenceException.class, () -> manager.query(Person.class).orderBy("\"; drop table Person").list());
+    }
+
+    @Test
+    void inTransactionCommitsAllWrites() throws SQLException {
+        var department = new Department("Marketing", "MRK");
+        var person = new Person("Ferko", "Kapustka", 2000);
+        person.setDepartment(department);
+        manager.inTransaction(transaction -> {
+            transaction.save(department);
+            transaction.save(person);
+        });
+        assertTrue(connection.getAutoCommit());
+        assertSqlHasResult("select * from person where id=3 and department=3");
+    }
+
+    @Test
+    void failedTransactionRollsBack() {
+        var department = new Department("Marketing", "MRK");
+        assertThrows(IllegalStateException.class, () -> manager.inTransaction(transaction -> {
+            transaction.save(department);
+            throw new IllegalStateException("failed");
+        }));
+        assertEquals(0, department.getId());
+        assertEquals(2, manager.getAll(Department.class).size());
+    }
+
+    @Test
+    void nestedTransactionRollsBackToSavepoint() throws SQLException {
+        var marketing = new Department("Marketing", "MRK");
+        var sales = new Department("Sales", "SLS");
+        manager.begin();
+        manager.save(marketing);
+        manager.begin();
+        manager.save(sales);
+        manager.rollback();
+        manager.commit();
+        assertEquals(3, marketing.getId());
+        assertEquals(0, sales.getId());
+        assertSqlHasResult("select * from Department where id=3 and code='MRK'");
+        assertEquals(3, manager.getAll(Department.class).size());
+    }
+
+    @Test
+    void commitWithoutTransactionThrowsException() {
+        assertThrows(PersistenceException.class, () -> manager.commit());
+        assertThrows(PersistenceException.class, () -> manager.rollback());
+    }
+
+    @Test
+    void lazyReferenceLoadsOnFirstAccess() throws SQLException {
+        manager.createTables(Project.class);
+        executeSqlScript("insert into Project(name, department) values ('Migration', 2)");
+        var project = manager.getAll(Project.class).get(0);
+        var department = project.getDepartmentRef();
+        assertFalse(department.isLoaded());
+        assertEquals(2, department.getId());
+        assertEquals(Department.class, department.getType());
+        assertDepartmentValue(project.getDepartment(), 2, "Operations", "OPS");
+        assertTrue(department.isLoaded());
+    }
+
+    @Test
+    void saveLazyReference() throws SQLException {
+        manager.createTables(Project.class);
+        var project = new Project("Migration", manager.get(Department.class, 1).get());
+        manager.save(project);
+        assertSqlHasResult("select * from Project where id=1 and name='Migration' and department=1");
+
+        // A reference which was not accessed keeps its foreign key
+        var loaded = manager.get(Project.class, 1).get();
+        loaded.setName("Upgrade");
+        manager.save(loaded);
+        assertFalse(loaded.getDepartmentRef().isLoaded());
+        assertSqlHasResult("select * from Project where id=1 and name='Upgrade' and department=1");
+
+        loaded.setDepartment(null);
+        manager.save(loaded);
+        assertSqlHasResult("select * from Project where id=1 and department is null");
+    }
+
+    @Test
+    void metricsRecordOperationsRowsAndReferences() {
+        var metrics = new DefaultPersistenceMetrics();
+        ((ReflectivePersistenceManager) manager).setMetrics(metrics);
+        manager.getAll(Person.class);
+        manager.save(new Department("Sales", "SAL"));
+
+        assertEquals(1, metrics.operationStatistics(PersistenceMetrics.Operation.GET_ALL, Person.class).count());
+        assertEquals(1, metrics.operationStatistics(PersistenceMetrics.Operation.SAVE, Department.class).count());
+        var persons = metrics.entityStatistics(Person.class);
+        assertEquals(2, persons.rowsRead());
+        assertEquals(1, persons.statements());
+        var departments = metrics.entityStatistics(Department.class);
+        assertEquals(1, departments.referenceLoads()); // Only the referenced department is prefetched.
+        assertEquals(1, departments.rowsWritten());
+        assertEquals(2, departments.statements());
+
+        // Without metrics nothing is recorded
+        ((ReflectivePersistenceManager) manager).setMetrics(null);
+        manager.get(Person.class, 1);
+        assertEquals(2, metrics.entityStatistics(Person.class).rowsRead());
+    }
+
+    @Test
+    void metricsAreExposedThroughJmx() {
+        var metrics = new DefaultPersistenceMetrics();
+        ((ReflectivePersistenceManager) manager).setMetrics(metrics);
+        var name = metrics.registerMBean(getClass().getSimpleName());
+        try {
+            manager.get(Department.class, 1);
+            var bean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name,
+                    PersistenceMetricsMXBean.class);
+            assertEquals(Map.of("Department.GET", 1L), bean.getOperationCounts());
+            assertEquals(Map.of("Department", 1L), bean.getRowsRead());
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    void operationsEmitFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("persistence", ".jfr");
+        try (var recording = new Recording()) {
+            for (String event : List.of("PersistenceGet", "PersistenceSave", "SqlExecute", "ReferenceLoad")) {
+                recording.enable("sk.tuke.meta.persistence." + event);
+            }
+            recording.start();
+            manager.get(Person.class, 1);
+            manager.save(new Department("Sales", "SAL"));
+            recording.stop();
+            recording.dump(file);
+
+            var events = RecordingFile.readAllEvents(file);
+            var get = eventsNamed(events, "PersistenceGet").stream()
+                    .filter(event -> event.getClass("entityClass").getName().equals(Person.class.getName()))
+                    .findFirst().orElseThrow();
+            assertEquals(1, get.getLong("id"));
+            assertTrue(get.getBoolean("found"));
+            var reference = eventsNamed(events, "ReferenceLoad").get(0);
+            assertEquals(Department.class.getName(), reference.getClass("entityClass").getName());
+            assertFalse(reference.getBoolean("lazy"));
+            var save = eventsNamed(events, "PersistenceSave").get(0);
+            assertEquals(1, save.getInt("rowCount"));
+            assertEquals(3, save.getLong("id"));
+            var statements = eventsNamed(events, "SqlExecute");
+            assertTrue(statements.stream().anyMatch(event -> event.getString("sql").startsWith("INSERT INTO")
+                    && event.getLong("rowCount") == 1));
+            assertTrue(statements.stream().anyMatch(event -> event.getString("sql").startsWith("SELECT")
+                    && event.getClass("entityClass").getName().equals(Person.class.getName())));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void slowQueryLogRecordsParametersAndQueryPlan() {
+        var log = new SlowQueryLog(Duration.ZERO, 100, false);
+        ((ReflectivePersistenceManager) manager).setSlowQueryLog(log);
+        manager.query(Person.class).where("age", GT, 100).list();
+        manager.get(Department.class, 2);
+
+        var query = log.slowest().stream().filter(statement -> statement.sql().contains("\"age\" >")
+                        && !statement.sql().contains(" IN ")) // Not the prefetch of the departments
+                .findFirst().orElseThrow();
+        assertEquals(List.of(100), query.parameters());
+        assertTrue(query.queryPlan().stream().anyMatch(line -> line.startsWith("SCAN Person")), query.toString());
+        var get = log.slowest().stream().filter(statement -> statement.sql().startsWith("SELECT")
+                && statement.sql().endsWith("FROM \"Department\" WHERE \"id\" = ?")).findFirst().orElseThrow();
+        assertEquals(List.of(2L), get.parameters());
+        assertTrue(get.queryPlan().get(0).startsWith("SEARCH Department USING INTEGER PRIMARY KEY"), get.toString());
+        assertEquals(log.count(), log.slowest().size());
+    }
+
+    @Test
+    void slowQueryLogKeepsOnlySlowestRedactedStatements() {
+        var log = new SlowQueryLog(Duration.ZERO, 2, true);
+        ((ReflectivePersistenceManager) manager).setSlowQueryLog(log);
+        for (int id = 1; id <= 3; id++) {
+            manager.get(Person.class, id);
+        }
+        var slowest = log.slowest();
+        assertEquals(2, slowest.size());
+        assertTrue(log.count() > 2);
+        assertTrue(slowest.get(0).durationNanos() >= slowest.get(1).durationNanos());
+        assertTrue(slowest.stream().allMatch(statement -> statement.parameters().stream().allMatch("?"::equals)));
+
+        // Statements faster than the threshold are not logged
+        var slowOnly = new SlowQueryLog(Duration.ofHours(1), 2, false);
+        ((ReflectivePersistenceManager) manager).setSlowQueryLog(slowOnly);
+        manager.getAll(Person.class);
+        assertEquals(0, slowOnly.count());
+    }
+
+    @Test
+    void latencyHistogramEstimatesPercentiles() {
+        var histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1_000_000, histogram.max());
+        // Estimates are upper bounds of buckets at most 12.5 % wide
+        assertTrue(histogram.percentile(50) >= 500_000 && histogram.percentile(50) <= 562_500);
+        assertTrue(histogram.percentile(99) >= 990_000 && histogram.percentile(99) <= 1_000_000);
+    }
+
+    private List<RecordedEvent> eventsNamed(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals("sk.tuke.meta.persistence." + name))
+                .toList();
+    }
+
     private void assertDepartmentValue(
             Department devDepartment, int id, String name, String code) {
         assertEquals(id, devDepartment.getId());
@@ -0,0 +1,122 @@
+package sk.tuke.meta.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sk.tuke.meta.persistence.ReflectivePersistenceManager;
+import sk.tuke.meta.persistence.SchemaMigrator;
+import sk.tuke.meta.persistence.SchemaMigrator.Kind;
+import sk.tuke.meta.persistence.SchemaMigrator.Migration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaMigratorTests {
+    private Connection connection;
+    private ReflectivePersistenceManager manager;
+    private SchemaMigrator migrator;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        manager = new ReflectivePersistenceManager(connection);
+        migrator = new SchemaMigrator(manager);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        manager.close();
+        connection.close();
+    }
+
+    @Test
+    void createsMissingTablesAndRecordsVersions() {
+        List<Migration> migrations = migrator.migrate(Department.class, Person.class);
+        assertEquals(2, migrations.size());
+        assertEquals(Kind.CREATE, migrations.get(0).kind());
+        assertEquals(1, migrations.get(1).version());
+        // The created schema matches the entities, so there is nothing to migrate
+        assertEquals(List.of(), migrator.migrate(Department.class, Person.class));
+        assertEquals(List.of("Department", "Person"), migrator.history().stream().map(Migration::table).toList());
+    }
+
+    @Test
+    void addsNewColumnInPlace() throws SQLException {
+        execute("CREATE TABLE \"Department\" (\"id\" INTEGER PRIMARY KEY AUTOINCREMENT, \"name\" TEXT)");
+        execute("INSERT INTO \"Department\" (\"name\") VALUES ('Development')");
+
+        List<Migration> migrations = migrator.migrate(Department.class);
+        assertEquals(1, migrations.size());
+        assertEquals(Kind.ALTER, migrations.get(0).kind());
+        assertEquals(List.of("ALTER TABLE \"Department\" ADD COLUMN \"code\" TEXT",
+                "CREATE UNIQUE INDEX IF NOT EXISTS \"idx_Department_code\" ON \"Department\" (\"code\")"),
+                migrations.get(0).statements());
+
+        var department = manager.get(Department.class, 1).get();
+        assertEquals("Development", department.getName());
+        assertNull(department.getCode());
+        assertEquals(List.of(), migrator.migrate(Department.class));
+    }
+
+    @Test
+    void incompatibleChangeRebuildsTable() throws SQLException {
+        manager.createTables(Department.class);
+        manager.save(new Department("Development", "DEV"));
+        execute("CREATE TABLE \"Person\" (\"id\" INTEGER PRIMARY KEY AUTOINCREMENT, \"surname\" TEXT, "
+                + "\"name\" TEXT, \"age\" TEXT, \"nickname\" TEXT, \"department\" INTEGER)");
+        execute("INSERT INTO \"Person\" (\"surname\", \"name\", \"age\", \"nickname\", \"department\") "
+                + "VALUES ('Hrasko', 'Janko', '30', 'Jano', 1), ('Mrkvicka', 'Jozko', '40', NULL, NULL)");
+        execute("DELETE FROM \"Person\" WHERE \"id\" = 2");
+
+        List<Migration> migrations = migrator.migrate(Department.class, Person.class);
+        assertEquals(1, migrations.size());
+        assertEquals(Kind.REBUILD, migrations.get(0).kind());
+        assertEquals(List.of("id", "surname", "name", "age", "department"), columns("Person"));
+
+        var person = manager.get(Person.class, 1).get();
+        assertEquals(30, person.getAge());
+        assertEquals("DEV", person.getDepartment().getCode());
+        // The AUTOINCREMENT counter survives the rebuild, so the id of the deleted row is not reused
+        var newPerson = new Person("Novak", "Peter", 20);
+        manager.save(newPerson);
+        assertEquals(3, newPerson.getId());
+        assertEquals(List.of(), migrator.migrate(Department.class, Person.class));
+    }
+
+    @Test
+    void undeclaredGeneratedIndexIsDropped() throws SQLException {
+        manager.createTables(Department.class);
+        execute("CREATE INDEX \"idx_Department_name\" ON \"Department\" (\"name\")");
+        execute("CREATE INDEX \"department_lookup\" ON \"Department\" (\"name\", \"code\")");
+        execute("DROP INDEX \"idx_Department_code\"");
+        execute("CREATE INDEX \"idx_Department_code\" ON \"Department\" (\"code\", \"name\")");
+
+        List<Migration> migrations = migrator.migrate(Department.class);
+        assertEquals(List.of("DROP INDEX \"idx_Department_code\"",
+                "CREATE UNIQUE INDEX IF NOT EXISTS \"idx_Department_code\" ON \"Department\" (\"code\")",
+                "DROP INDEX \"idx_Department_name\""), migrations.get(0).statements());
+        assertEquals(1, migrator.history().size());
+        assertEquals(List.of(), migrator.migrate(Department.class));
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (var stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private List<String> columns(String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (var rs = connection.createStatement().executeQuery("PRAGMA table_info(\"" + table + "\")")) {
+            while (rs.next()) {
+                columns.add(rs.getString("name"));
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,168 @@
+package sk.tuke.meta.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sk.tuke.meta.persistence.GeneratedPersistenceManager;
+import sk.tuke.meta.persistence.PersistenceException;
+import sk.tuke.meta.persistence.WriteBehindPersistenceManager;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindManagerTests {
+    private Connection connection;
+    private WriteBehindPersistenceManager manager;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        manager.close();
+        connection.close();
+    }
+
+    @Test
+    void writesWaitForFlush() {
+        open(100, Duration.ofHours(1));
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            commits.add(manager.submitSave(new Department("Department " + i, "D" + i)));
+        }
+        assertTrue(commits.stream().noneMatch(CompletableFuture::isDone));
+        manager.flush();
+        assertTrue(commits.stream().allMatch(commit -> commit.isDone() && !commit.isCompletedExceptionally()));
+        assertEquals(10, manager.getAll(Department.class).size());
+        assertEquals(0, manager.pendingCount());
+    }
+
+    @Test
+    void fullGroupIsCommitted() throws Exception {
+        open(3, Duration.ofHours(1));
+        var department = new Department("Development", "DEV");
+        manager.save(department);
+        manager.save(new Department("Operations", "OPS"));
+        manager.submitDelete(department).get(5, TimeUnit.SECONDS);
+        assertEquals(1, manager.getAll(Department.class).size());
+    }
+
+    @Test
+    void groupIsCommittedAfterInterval() throws Exception {
+        open(100, Duration.ofMillis(10));
+        var department = new Department("Development", "DEV");
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(department);
+        manager.save(department);
+        manager.submitSave(person).get(5, TimeUnit.SECONDS);
+        assertEquals("DEV", manager.get(Person.class, person.getId()).get().getDepartment().getCode());
+    }
+
+    @Test
+    void failedWriteFailsAlone() {
+        open(100, Duration.ofHours(1));
+        var department = new Department("Development", "DEV");
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(new Department("Operations", "OPS"));
+        var colleague = new Person("Jozko", "Mrkvicka", 1200);
+        var saved = manager.submitSave(department);
+        var failed = manager.submitSave(person);
+        manager.saveAll(List.of(colleague));
+        manager.flush();
+        assertFalse(saved.isCompletedExceptionally());
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, person.getId());
+        assertEquals(1, manager.getAll(Department.class).size());
+        assertEquals(List.of(colleague.getId()), manager.getAll(Person.class).stream().map(Person::getId).toList());
+    }
+
+    @Test
+    void writesRunOnceWhenAnotherWriteOfGroupFails() {
+        open(100, Duration.ofHours(1));
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(new Department("Operations", "OPS"));
+        var failed = manager.submitSave(person);
+        int[] runs = {0};
+        manager.inTransaction(transaction -> {
+            runs[0]++;
+            transaction.save(new Department("Development", "DEV"));
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(1, runs[0]);
+        assertEquals(1, manager.getAll(Department.class).size());
+    }
+
+    @Test
+    void flusherErrorFailsPendingWrites() {
+        open(100, Duration.ofHours(1));
+        var pending = manager.submitSave(new Department("Development", "DEV"));
+        assertThrows(PersistenceException.class, () -> manager.inTransaction(transaction -> {
+            throw new AssertionError("Flusher stops");
+        }));
+        assertTrue(pending.isCompletedExceptionally());
+        assertThrows(PersistenceException.class, () -> manager.submitSave(new Department("Operations", "OPS")));
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(PersistenceException.class, manager::close));
+    }
+
+    @Test
+    void failedSingleWriteIsRolledBack() {
+        open(100, Duration.ofHours(1));
+        var person = new Person("Janko", "Hrasko", 1000);
+        person.setDepartment(new Department("Operations", "OPS"));
+        manager.saveAll(List.of(new Person("Jozko", "Mrkvicka", 1200), person));
+        manager.flush();
+        assertTrue(manager.getAll(Person.class).isEmpty());
+    }
+
+    @Test
+    void closeCommitsPendingWritesAndRejectsNewOnes() {
+        open(100, Duration.ofHours(1));
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            commits.add(manager.submitSave(new Department("Department " + i, "D" + i)));
+        }
+        manager.close();
+        assertTrue(commits.stream().allMatch(commit -> commit.isDone() && !commit.isCompletedExceptionally()));
+        assertThrows(PersistenceException.class, () -> manager.submitSave(new Department("Late", "L")));
+        assertEquals(10, new GeneratedPersistenceManager(connection).getAll(Department.class).size());
+    }
+
+    @Test
+    void writesSubmittedWhileClosingAreCommittedOrRejected() throws Exception {
+        open(5, Duration.ofMillis(1));
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        Thread submitter = new Thread(() -> {
+            try {
+                for (int i = 0; ; i++) {
+                    commits.add(manager.submitSave(new Department("Department " + i, "D" + i)));
+                }
+            } catch (PersistenceException closed) {
+                // Rejected once the manager is closed
+            }
+        });
+        submitter.start();
+        Thread.sleep(20);
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            manager.close();
+            submitter.join();
+            CompletableFuture.allOf(commits.toArray(CompletableFuture[]::new)).get();
+        });
+        assertEquals(commits.size(), new GeneratedPersistenceManager(connection).getAll(Department.class).size());
+    }
+
+    private void open(int maxBatchSize, Duration flushInterval) {
+        manager = new WriteBehindPersistenceManager(new GeneratedPersistenceManager(connection),
+                maxBatchSize, flushInterval, 1000);
+        manager.createTables(Department.class, Person.class);
+    }
+}
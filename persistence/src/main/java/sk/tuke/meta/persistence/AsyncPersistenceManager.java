@@ -0,0 +1,189 @@
+package sk.tuke.meta.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade of a {@link PooledPersistenceManager}.
+ * <p>
+ * Reads run on a read executor, by default a fixed pool with one thread per read-only
+ * connection, since more threads would only wait for a connection. On a JDK with virtual threads
+ * a virtual thread per task executor can be passed instead. All writes run on a single writer
+ * thread in the order they were submitted, matching the single writer of SQLite.
+ * <p>
+ * Failures complete the returned futures exceptionally with the {@link PersistenceException}
+ * thrown by the pool.
+ */
+public class AsyncPersistenceManager implements AutoCloseable {
+    private final PooledPersistenceManager manager;
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+    private final boolean ownsReadExecutor;
+    // Reads submitted and not completed yet, guarded by this
+    private int pendingReads;
+    private boolean closed;
+
+    /**
+     * @param manager pool executing the operations, closed together with this manager
+     */
+    public AsyncPersistenceManager(PooledPersistenceManager manager) {
+        this(manager, Executors.newFixedThreadPool(manager.readerCount(), threadFactory("persistence-reader-")), true);
+    }
+
+    /**
+     * @param manager      pool executing the operations, closed together with this manager
+     * @param readExecutor executor running the reads, it is not shut down by {@link #close()},
+     *                     which waits only for the reads submitted by this manager
+     */
+    public AsyncPersistenceManager(PooledPersistenceManager manager, ExecutorService readExecutor) {
+        this(manager, readExecutor, false);
+    }
+
+    private AsyncPersistenceManager(PooledPersistenceManager manager, ExecutorService readExecutor,
+                                    boolean ownsReadExecutor) {
+        this.manager = manager;
+        this.readExecutor = readExecutor;
+        this.ownsReadExecutor = ownsReadExecutor;
+        this.writeExecutor = Executors.newSingleThreadExecutor(threadFactory("persistence-writer-"));
+    }
+
+    /**
+     * Retrieve an entity by its ID.
+     *
+     * @param type The Class of the entity to retrieve.
+     * @param id   The ID of the entity to retrieve.
+     * @return future completed with the entity, or an empty Optional if it does not exist
+     */
+    public <T> CompletableFuture<Optional<T>> getAsync(Class<T> type, long id) {
+        return read(() -> manager.get(type, id));
+    }
+
+    /**
+     * Retrieve all entities of a type.
+     *
+     * @param type The Class of the entities to retrieve.
+     * @return future completed with the entities
+     */
+    public <T> CompletableFuture<List<T>> getAllAsync(Class<T> type) {
+        return read(() -> manager.getAll(type));
+    }
+
+    /**
+     * Save an entity after all previously submitted writes.
+     *
+     * @param entity The entity to be saved, it must not be modified until the future completes.
+     * @return future completed with the saved entity, which has its ID assigned
+     */
+    public <T> CompletableFuture<T> saveAsync(T entity) {
+        return CompletableFuture.supplyAsync(() -> {
+            manager.save(entity);
+            return entity;
+        }, writeExecutor);
+    }
+
+    /**
+     * Save entities in one transaction after all previously submitted writes.
+     *
+     * @param entities The entities to be saved, they must not be modified until the future completes.
+     * @return future completed when the entities are saved
+     */
+    public <T> CompletableFuture<Void> saveAllAsync(Collection<T> entities) {
+        return CompletableFuture.runAsync(() -> manager.saveAll(entities), writeExecutor);
+    }
+
+    /**
+     * Delete an entity after all previously submitted writes.
+     *
+     * @param entity The entity to delete.
+     * @return future completed when the entity is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(Object entity) {
+        return CompletableFuture.runAsync(() -> manager.delete(entity), writeExecutor);
+    }
+
+    /**
+     * @return the pool executing the operations, e.g. to call blocking methods
+     */
+    public PooledPersistenceManager manager() {
+        return manager;
+    }
+
+    /**
+     * Wait for submitted operations to finish and close the pool. Reads submitted afterwards
+     * fail with {@link PersistenceException}. A read executor passed by the caller must keep
+     * running the submitted reads until this method returns.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        writeExecutor.shutdown();
+        if (ownsReadExecutor) {
+            readExecutor.shutdown();
+        }
+        try {
+            synchronized (this) {
+                while (pendingReads > 0) {
+                    wait(); // The pool must not be closed under running reads.
+                }
+            }
+            writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if (ownsReadExecutor) {
+                readExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for pending operations", e);
+        }
+        manager.close();
+    }
+
+    // getAsync getAllAsync
+    private <R> CompletableFuture<R> read(Supplier<R> read) {
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new PersistenceException("Async manager is closed"));
+            }
+            pendingReads++;
+        }
+        CompletableFuture<R> future;
+        try {
+            future = CompletableFuture.supplyAsync(read, readExecutor);
+        } catch (RejectedExecutionException e) {
+            readFinished();
+            throw e;
+        }
+        future.whenComplete((result, failure) -> readFinished());
+        return future;
+    }
+
+    // read
+    private synchronized void readFinished() {
+        if (--pendingReads == 0) {
+            notifyAll();
+        }
+    }
+
+    // constructor
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
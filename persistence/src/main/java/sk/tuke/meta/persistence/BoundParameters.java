@@ -0,0 +1,66 @@
+package sk.tuke.meta.persistence;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Remembers the parameter values bound to a prepared statement, since JDBC gives no way
+ * to read them back. Statements are wrapped only while a {@link SlowQueryLog} is set,
+ * so the proxy costs nothing otherwise.
+ */
+final class BoundParameters implements InvocationHandler {
+    private final PreparedStatement statement;
+    private final SortedMap<Integer, Object> values = new TreeMap<>();
+
+    private BoundParameters(PreparedStatement statement) {
+        this.statement = statement;
+    }
+
+    /**
+     * @param statement statement to wrap
+     * @return statement remembering the values of its parameters
+     */
+    static PreparedStatement record(PreparedStatement statement) {
+        return (PreparedStatement) Proxy.newProxyInstance(BoundParameters.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new BoundParameters(statement));
+    }
+
+    /**
+     * @param statement statement which may be wrapped by {@link #record}
+     * @return values of the parameters in their order, of the last row of a batch,
+     * or an empty list if the statement does not remember them
+     */
+    static List<Object> of(PreparedStatement statement) {
+        if (Proxy.isProxyClass(statement.getClass())
+                && Proxy.getInvocationHandler(statement) instanceof BoundParameters parameters) {
+            synchronized (parameters) {
+                return new ArrayList<>(parameters.values.values());
+            }
+        }
+        return List.of();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        synchronized (this) {
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer index) {
+                values.put(index, name.equals("setNull") ? null : args[1]);
+            } else if (name.equals("clearParameters")) {
+                values.clear();
+            }
+        }
+        try {
+            return method.invoke(statement, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package sk.tuke.meta.persistence;
+
+/**
+ * Statistics of cached entities of one type.
+ *
+ * @param hitCount      number of lookups which found the entity
+ * @param missCount     number of lookups which did not find the entity
+ * @param evictionCount number of entities removed because the cache was full or the entity expired
+ * @param size          number of cached entities
+ */
+public record CacheStatistics(long hitCount, long missCount, long evictionCount, int size) {
+    public static final CacheStatistics EMPTY = new CacheStatistics(0, 0, 0, 0);
+}
@@ -0,0 +1,258 @@
+package sk.tuke.meta.persistence;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Thread-safe metrics keeping counters and a {@link LatencyHistogram} for every operation
+ * on every entity type. The metrics can be published as an MXBean by {@link #registerMBean}.
+ */
+public class DefaultPersistenceMetrics implements PersistenceMetrics, PersistenceMetricsMXBean {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final Map<Class<?>, TypeMetrics> metrics = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    @Override
+    public void recordOperation(Operation operation, Class<?> type, long nanos) {
+        metricsOf(type).operations[operation.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void recordStatement(Class<?> type, long nanos) {
+        TypeMetrics typeMetrics = metricsOf(type);
+        typeMetrics.statements.increment();
+        typeMetrics.jdbcNanos.add(nanos);
+    }
+
+    @Override
+    public void recordFetch(Class<?> type, long nanos) {
+        metricsOf(type).jdbcNanos.add(nanos);
+    }
+
+    @Override
+    public void recordRowRead(Class<?> type, long nanos) {
+        TypeMetrics typeMetrics = metricsOf(type);
+        typeMetrics.rowsRead.increment();
+        typeMetrics.hydrationNanos.add(nanos);
+    }
+
+    @Override
+    public void recordRowsWritten(Class<?> type, long rows) {
+        metricsOf(type).rowsWritten.add(rows);
+    }
+
+    @Override
+    public void recordReferenceLoad(Class<?> type) {
+        metricsOf(type).referenceLoads.increment();
+    }
+
+    @Override
+    public void recordSkippedUpdate(Class<?> type) {
+        metricsOf(type).skippedUpdates.increment();
+    }
+
+    @Override
+    public void recordPartialUpdate(Class<?> type) {
+        metricsOf(type).partialUpdates.increment();
+    }
+
+    @Override
+    public OperationStatistics operationStatistics(Operation operation, Class<?> type) {
+        TypeMetrics typeMetrics = metrics.get(type);
+        if (typeMetrics == null) {
+            return OperationStatistics.EMPTY;
+        }
+        LatencyHistogram histogram = typeMetrics.operations[operation.ordinal()];
+        return new OperationStatistics(histogram.count(), histogram.total(),
+                histogram.percentile(50), histogram.percentile(99), histogram.max());
+    }
+
+    @Override
+    public EntityStatistics entityStatistics(Class<?> type) {
+        TypeMetrics typeMetrics = metrics.get(type);
+        if (typeMetrics == null) {
+            return EntityStatistics.EMPTY;
+        }
+        return new EntityStatistics(typeMetrics.rowsRead.sum(), typeMetrics.rowsWritten.sum(),
+                typeMetrics.statements.sum(), typeMetrics.jdbcNanos.sum(), typeMetrics.hydrationNanos.sum(),
+                typeMetrics.referenceLoads.sum(), typeMetrics.skippedUpdates.sum(), typeMetrics.partialUpdates.sum());
+    }
+
+    @Override
+    public Set<Class<?>> types() {
+        return Set.copyOf(metrics.keySet());
+    }
+
+    @Override
+    public void reset() {
+        metrics.clear();
+    }
+
+    /**
+     * Register the metrics in the platform MBean server under
+     * <code>sk.tuke.meta.persistence:type=PersistenceMetrics,name=&lt;name&gt;</code>.
+     *
+     * @param name name distinguishing the metrics of several managers
+     * @return name of the registered MBean
+     * @throws PersistenceException if the metrics are already registered or registering fails
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        if (objectName != null) {
+            throw new PersistenceException("Metrics are already registered as " + objectName);
+        }
+        try {
+            ObjectName registered = new ObjectName(getClass().getPackageName()
+                    + ":type=PersistenceMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+            objectName = registered;
+            return registered;
+        } catch (InstanceAlreadyExistsException e) {
+            throw new PersistenceException("Metrics named " + name + " are already registered", e);
+        } catch (JMException e) {
+            throw new PersistenceException("Failed to register metrics " + name, e);
+        }
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered by someone else.
+        } catch (JMException e) {
+            throw new PersistenceException("Failed to unregister metrics " + objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return operationAttribute(LatencyHistogram::count);
+    }
+
+    @Override
+    public Map<String, Double> getOperationMeanMillis() {
+        return operationAttribute(histogram -> histogram.count() == 0 ? 0
+                : histogram.total() / NANOS_PER_MILLI / histogram.count());
+    }
+
+    @Override
+    public Map<String, Double> getOperationP50Millis() {
+        return operationAttribute(histogram -> histogram.percentile(50) / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Double> getOperationP99Millis() {
+        return operationAttribute(histogram -> histogram.percentile(99) / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Double> getOperationMaxMillis() {
+        return operationAttribute(histogram -> histogram.max() / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Long> getRowsRead() {
+        return typeAttribute(typeMetrics -> typeMetrics.rowsRead.sum());
+    }
+
+    @Override
+    public Map<String, Long> getRowsWritten() {
+        return typeAttribute(typeMetrics -> typeMetrics.rowsWritten.sum());
+    }
+
+    @Override
+    public Map<String, Long> getStatements() {
+        return typeAttribute(typeMetrics -> typeMetrics.statements.sum());
+    }
+
+    @Override
+    public Map<String, Long> getReferenceLoads() {
+        return typeAttribute(typeMetrics -> typeMetrics.referenceLoads.sum());
+    }
+
+    @Override
+    public Map<String, Long> getSkippedUpdates() {
+        return typeAttribute(typeMetrics -> typeMetrics.skippedUpdates.sum());
+    }
+
+    @Override
+    public Map<String, Long> getPartialUpdates() {
+        return typeAttribute(typeMetrics -> typeMetrics.partialUpdates.sum());
+    }
+
+    @Override
+    public Map<String, Double> getJdbcMillis() {
+        return typeAttribute(typeMetrics -> typeMetrics.jdbcNanos.sum() / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Double> getHydrationMillis() {
+        return typeAttribute(typeMetrics -> typeMetrics.hydrationNanos.sum() / NANOS_PER_MILLI);
+    }
+
+    // record methods
+    private TypeMetrics metricsOf(Class<?> type) {
+        return metrics.computeIfAbsent(type, key -> new TypeMetrics());
+    }
+
+    // MXBean operation attributes, operations which were not called are left out
+    private <V> Map<String, V> operationAttribute(Function<LatencyHistogram, V> value) {
+        Map<String, V> attribute = new TreeMap<>();
+        metrics.forEach((type, typeMetrics) -> {
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram histogram = typeMetrics.operations[operation.ordinal()];
+                if (histogram.count() > 0) {
+                    attribute.put(type.getSimpleName() + "." + operation, value.apply(histogram));
+                }
+            }
+        });
+        return attribute;
+    }
+
+    // MXBean type attributes
+    private <V> Map<String, V> typeAttribute(Function<TypeMetrics, V> value) {
+        Map<String, V> attribute = new TreeMap<>();
+        metrics.forEach((type, typeMetrics) -> attribute.put(type.getSimpleName(), value.apply(typeMetrics)));
+        return attribute;
+    }
+
+    /**
+     * Metrics of one entity type.
+     */
+    private static class TypeMetrics {
+        final LatencyHistogram[] operations = new LatencyHistogram[Operation.values().length];
+        final LongAdder rowsRead = new LongAdder();
+        final LongAdder rowsWritten = new LongAdder();
+        final LongAdder statements = new LongAdder();
+        final LongAdder jdbcNanos = new LongAdder();
+        final LongAdder hydrationNanos = new LongAdder();
+        final LongAdder referenceLoads = new LongAdder();
+        final LongAdder skippedUpdates = new LongAdder();
+        final LongAdder partialUpdates = new LongAdder();
+
+        TypeMetrics() {
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package sk.tuke.meta.persistence;
+
+/**
+ * Second-level cache of entities shared by persistence managers.
+ * <p>
+ * A manager with a cache consults it in {@link PersistenceManager#get} before querying
+ * the database, stores the column values of loaded entities into it and evicts entities
+ * it saves or deletes, once when they are written and again when the transaction commits.
+ * A value read before an eviction is not stored, see {@link #stamp}.
+ * The cache keeps values, not entity instances: every hit creates
+ * a new entity by {@link EntityMapper#create}, so callers never share a mutable instance.
+ * Implementations must be thread-safe.
+ */
+public interface EntityCache {
+
+    /**
+     * @param type entity class
+     * @return true if entities of the type are cached
+     */
+    boolean isCached(Class<?> type);
+
+    /**
+     * Get the cached column values of an entity.
+     *
+     * @param type entity class
+     * @param id   primary key value
+     * @return values in the order of {@link EntityMapper#columns()}, which must not be modified,
+     * or <code>null</code> if the entity is not cached
+     */
+    Object[] get(Class<?> type, long id);
+
+    /**
+     * Take a stamp before reading entities from the database. Every eviction changes the stamp,
+     * so values read concurrently with a write are not stored after the write evicted them.
+     *
+     * @param type entity class
+     * @return stamp to pass to {@link #put}
+     */
+    long stamp(Class<?> type);
+
+    /**
+     * Store the column values of an entity, unless an entity of the type was evicted since
+     * the stamp was taken. Entities of types which are not cached are ignored.
+     *
+     * @param type   entity class
+     * @param id     primary key value
+     * @param values values returned by {@link EntityMapper#values}, which are not modified afterwards
+     * @param stamp  stamp taken by {@link #stamp} before the values were read
+     */
+    void put(Class<?> type, long id, Object[] values, long stamp);
+
+    /**
+     * Remove an entity from the cache.
+     *
+     * @param type entity class
+     * @param id   primary key value
+     */
+    void evict(Class<?> type, long id);
+
+    /**
+     * Remove all entities from the cache.
+     */
+    void clear();
+
+    /**
+     * @param type entity class
+     * @return statistics of the entity type
+     */
+    CacheStatistics statistics(Class<?> type);
+}
@@ -0,0 +1,158 @@
+package sk.tuke.meta.persistence;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * EntityMapper converts between one entity class and its table row.
+ * <p>
+ * Implementations are generated at compile time by the annotation processor
+ * for every class annotated with {@link sk.tuke.meta.persistence.annotations.Table}.
+ * The generated mapper for entity <code>a.b.Person</code> is named
+ * <code>a.b.Person_Mapper</code>. Entities without a generated mapper
+ * are handled reflectively by {@link ReflectivePersistenceManager}.
+ * <p>
+ * Rows are always read from a result set whose first column is the id column
+ * followed by {@link #columns()} in the same order.
+ *
+ * @param <T> the entity type
+ */
+public interface EntityMapper<T> {
+
+    /**
+     * @return the mapped entity class
+     */
+    Class<T> type();
+
+    /**
+     * @return name of the database table
+     */
+    String tableName();
+
+    /**
+     * @return name of the primary key column
+     */
+    String idColumn();
+
+    /**
+     * @return names of all non-id columns in the order they are bound and read
+     */
+    List<String> columns();
+
+    /**
+     * @return columns referencing other entities, mapped to the referenced entity class
+     */
+    Map<String, Class<?>> references();
+
+    /**
+     * @return reference columns stored in {@link Ref} fields, which are loaded on first access
+     * instead of together with the entity
+     */
+    Set<String> lazyReferences();
+
+    /**
+     * @return <code>CREATE TABLE IF NOT EXISTS</code> statement for the entity table
+     */
+    String createTableSql();
+
+    /**
+     * @return <code>CREATE INDEX IF NOT EXISTS</code> statements of the indexes declared
+     * by {@link sk.tuke.meta.persistence.annotations.Index} and of reference columns
+     */
+    List<String> createIndexSql();
+
+    /**
+     * Read the primary key of an entity.
+     *
+     * @param entity the entity
+     * @return the id or 0 when the entity has not been saved yet
+     */
+    long getId(T entity);
+
+    /**
+     * Set the primary key of an entity, typically after it was inserted.
+     *
+     * @param entity the entity
+     * @param id     generated id
+     */
+    void setId(T entity, long id);
+
+    /**
+     * Create a new entity from the current row of the result set.
+     *
+     * @param rs      result set positioned on the row to read
+     * @param context used to load referenced entities
+     * @return the populated entity
+     * @throws SQLException when reading the row fails
+     */
+    T read(ResultSet rs, Context context) throws SQLException;
+
+    /**
+     * Bind all non-id columns of an entity to statement parameters
+     * <code>1..columns().size()</code>.
+     *
+     * @param entity    the entity to bind
+     * @param statement the statement to bind the values to
+     * @param context   used to obtain ids of referenced entities
+     * @throws SQLException when binding fails
+     */
+    void bind(T entity, PreparedStatement statement, Context context) throws SQLException;
+
+    /**
+     * Get the values of all non-id columns of an entity, which are the values {@link #bind} binds.
+     * References are represented by the ids of the referenced entities.
+     *
+     * @param entity  the entity to read
+     * @param context used to obtain ids of referenced entities
+     * @return values in the order of {@link #columns()}
+     */
+    Object[] values(T entity, Context context);
+
+    /**
+     * Create a new entity from column values returned by {@link #values}.
+     * Referenced entities are obtained by their ids like in {@link #read}.
+     *
+     * @param id      primary key value
+     * @param values  values in the order of {@link #columns()}
+     * @param context used to load referenced entities
+     * @return the populated entity
+     */
+    T create(long id, Object[] values, Context context);
+
+    /**
+     * Services provided by the persistence manager to the mappers.
+     */
+    interface Context {
+
+        /**
+         * Load a referenced entity.
+         *
+         * @param type referenced entity class
+         * @param id   foreign key value
+         * @return the referenced entity or <code>null</code> if it does not exist
+         */
+        <R> R load(Class<R> type, long id);
+
+        /**
+         * Create a lazy reference which loads the entity on its first access.
+         *
+         * @param type referenced entity class
+         * @param id   foreign key value
+         * @return reference which is not loaded yet
+         */
+        <R> Ref<R> reference(Class<R> type, long id);
+
+        /**
+         * Get the id of a referenced entity.
+         *
+         * @param entity referenced entity or a {@link Ref} to it
+         * @return the id of the entity
+         * @throws PersistenceException if the referenced entity has not been saved yet
+         */
+        long idOf(Object entity);
+    }
+}
@@ -0,0 +1,600 @@
+package sk.tuke.meta.persistence;
+
+import sk.tuke.meta.persistence.annotations.Column;
+import sk.tuke.meta.persistence.annotations.Id;
+import sk.tuke.meta.persistence.annotations.Index;
+import sk.tuke.meta.persistence.annotations.Table;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Reflection based description of an entity class, used as {@link EntityMapper} for entities
+ * that were not processed by the annotation processor.
+ * <p>
+ * Metadata is computed once per class by {@link #of(Class)} and is immutable afterwards,
+ * so it can be shared by all managers and threads. Fields are accessed through method handles
+ * obtained when the metadata is built, so no reflection lookups or access checks happen per call.
+ * The handles of all columns are combined into one handle reading and one writing a whole row,
+ * inside which the JIT sees the column handles as constants and inlines them.
+ *
+ * @param <T> the entity type
+ */
+final class EntityMetadata<T> implements EntityMapper<T> {
+    private static final ClassValue<EntityMetadata<?>> REGISTRY = new ClassValue<>() {
+        @Override
+        protected EntityMetadata<?> computeValue(Class<?> type) {
+            return new EntityMetadata<>(type);
+        }
+    };
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType ROW_GETTER_TYPE = MethodType.methodType(Object[].class, Object.class);
+    private static final MethodType ROW_SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object[].class);
+    private static final MethodHandle NON_NULL_VALUE;
+
+    static {
+        try {
+            // (entity, value) -> value != null
+            NON_NULL_VALUE = MethodHandles.dropArguments(MethodHandles.lookup().findStatic(Objects.class, "nonNull",
+                    MethodType.methodType(boolean.class, Object.class)), 0, Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Class<T> type;
+    private final String tableName;
+    private final MethodHandle constructor;
+    private final ColumnMetadata id;
+    private final List<ColumnMetadata> columns;
+    private final List<ColumnMetadata> referenceColumns;
+    private final int[] referenceIndexes;
+    private final MethodHandle rowGetter;
+    private final MethodHandle rowSetter;
+    private final List<String> columnNames;
+    private final Map<String, Class<?>> references;
+    private final Set<String> lazyReferences;
+    private final String createTableSql;
+    private final List<String> createIndexSql;
+
+    private EntityMetadata(Class<T> type) {
+        this.type = type;
+        this.tableName = tableName(type);
+
+        MethodHandles.Lookup lookup = lookupIn(type);
+        try {
+            this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new PersistenceException("Entity class " + type.getSimpleName()
+                    + " does not have a constructor without parameters.", e);
+        }
+
+        ColumnMetadata idColumn = null;
+        List<ColumnMetadata> columnList = new ArrayList<>();
+        List<ColumnMetadata> referenceList = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            if (!isPersistentField(field)) {
+                continue;
+            }
+            ColumnMetadata column = new ColumnMetadata(field, lookup);
+            if (idColumn == null && isIdField(field)) {
+                idColumn = column;
+            } else {
+                columnList.add(column);
+                if (column.reference) {
+                    referenceList.add(column);
+                }
+            }
+        }
+        if (idColumn == null) {
+            throw new PersistenceException("Entity class " + type.getSimpleName() + " does not have an 'id' field.");
+        }
+        this.id = idColumn;
+        this.columns = List.copyOf(columnList);
+        this.referenceColumns = List.copyOf(referenceList);
+        this.referenceIndexes = referenceColumns.stream().mapToInt(columns::indexOf).toArray();
+        this.rowGetter = rowGetter(columns);
+        this.rowSetter = rowSetter(columns);
+        this.columnNames = columns.stream().map(column -> column.name).toList();
+        Map<String, Class<?>> referenceTypes = new LinkedHashMap<>();
+        referenceColumns.forEach(column -> referenceTypes.put(column.name, column.type));
+        this.references = Collections.unmodifiableMap(referenceTypes);
+        this.lazyReferences = referenceColumns.stream()
+                .filter(column -> column.lazy).map(column -> column.name)
+                .collect(Collectors.toUnmodifiableSet());
+        this.createTableSql = buildCreateTableSQL();
+        this.createIndexSql = buildCreateIndexSQL();
+    }
+
+    /**
+     * Get metadata of an entity class, computing it on first use.
+     *
+     * @param type entity class
+     * @param <T>  the entity type
+     * @return metadata of the class
+     * @throws PersistenceException if the class cannot be used as an entity
+     */
+    @SuppressWarnings("unchecked")
+    static <T> EntityMetadata<T> of(Class<T> type) {
+        return (EntityMetadata<T>) REGISTRY.get(type);
+    }
+
+    @Override
+    public Class<T> type() {
+        return type;
+    }
+
+    @Override
+    public String tableName() {
+        return tableName;
+    }
+
+    @Override
+    public String idColumn() {
+        return id.name;
+    }
+
+    @Override
+    public List<String> columns() {
+        return columnNames;
+    }
+
+    @Override
+    public Map<String, Class<?>> references() {
+        return references;
+    }
+
+    @Override
+    public Set<String> lazyReferences() {
+        return lazyReferences;
+    }
+
+    @Override
+    public String createTableSql() {
+        return createTableSql;
+    }
+
+    @Override
+    public List<String> createIndexSql() {
+        return createIndexSql;
+    }
+
+    /**
+     * @return non-id columns in the order they are bound and read
+     */
+    List<ColumnMetadata> columnMetadata() {
+        return columns;
+    }
+
+    /**
+     * @return columns referencing other entities
+     */
+    List<ColumnMetadata> referenceColumns() {
+        return referenceColumns;
+    }
+
+    @Override
+    public long getId(T entity) {
+        return ((Number) id.get(entity)).longValue();
+    }
+
+    @Override
+    public void setId(T entity, long id) {
+        this.id.set(entity, this.id.type == int.class || this.id.type == Integer.class ? (Object) (int) id : (Object) id);
+    }
+
+    /**
+     * Creates an entity from a result set row. This includes setting both primitive and reference fields.
+     * Reference fields are loaded by their IDs through the context, {@link Ref} fields get a lazy reference.
+     */
+    @Override
+    public T read(ResultSet rs, Context context) throws SQLException {
+        T instance = newInstance();
+        setId(instance, rs.getLong(1));
+        Object[] values = new Object[columns.size()]; // Null values are not written, the fields keep their defaults.
+        for (int i = 0; i < values.length; i++) {
+            ColumnMetadata column = columns.get(i);
+            int index = i + 2;
+            if (column.reference) {
+                long relatedEntityId = rs.getLong(index); // Get the ID of the related entity from the ResultSet.
+                if (relatedEntityId > 0 && column.lazy) {
+                    values[i] = context.reference(column.type, relatedEntityId); // Loaded on first access.
+                } else if (relatedEntityId > 0) {
+                    values[i] = context.load(column.type, relatedEntityId); // Fetch the related entity.
+                }
+            } else {
+                values[i] = readValue(rs, index, column.type); // Get the value directly from the ResultSet.
+            }
+        }
+        writeRow(instance, values);
+        return instance;
+    }
+
+    @Override
+    public void bind(T entity, PreparedStatement statement, Context context) throws SQLException {
+        Object[] values = values(entity, context);
+        for (int i = 0; i < values.length; i++) {
+            statement.setObject(i + 1, values[i]);
+        }
+    }
+
+    @Override
+    public Object[] values(T entity, Context context) {
+        Object[] values = readRow(entity);
+        for (int index : referenceIndexes) {
+            if (values[index] != null) {
+                // If the field is a reference to another entity, use the ID of the referenced entity.
+                values[index] = context.idOf(values[index]);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public T create(long id, Object[] values, Context context) {
+        T instance = newInstance();
+        setId(instance, id);
+        Object[] fields = values.clone();
+        for (int index : referenceIndexes) {
+            ColumnMetadata column = columns.get(index);
+            if (fields[index] != null) {
+                long relatedEntityId = ((Number) fields[index]).longValue();
+                fields[index] = column.lazy
+                        ? context.reference(column.type, relatedEntityId)
+                        : context.load(column.type, relatedEntityId);
+            }
+        }
+        writeRow(instance, fields);
+        return instance;
+    }
+
+    // values, the field values of all columns
+    private Object[] readRow(T entity) {
+        try {
+            return (Object[]) rowGetter.invokeExact((Object) entity);
+        } catch (Throwable e) {
+            throw new PersistenceException("Failed to read fields of entity \"" + type.getSimpleName() + "\"", e);
+        }
+    }
+
+    // read create
+    private void writeRow(T entity, Object[] values) {
+        try {
+            rowSetter.invokeExact((Object) entity, values);
+        } catch (Throwable e) {
+            throw new PersistenceException("Failed to write fields of entity \"" + type.getSimpleName() + "\"", e);
+        }
+    }
+
+    // Combine the getters of all columns into a handle returning their values in an array
+    private static MethodHandle rowGetter(List<ColumnMetadata> columns) {
+        MethodHandle[] getters = columns.stream().map(column -> column.getter).toArray(MethodHandle[]::new);
+        MethodHandle array = MethodHandles.identity(Object[].class).asCollector(Object[].class, getters.length);
+        // Every getter gets the entity, which is the only parameter of the combined handle
+        return MethodHandles.permuteArguments(MethodHandles.filterArguments(array, 0, getters),
+                ROW_GETTER_TYPE, new int[getters.length]);
+    }
+
+    // Combine the setters of all columns into a handle writing the values of an array, null values are skipped
+    private static MethodHandle rowSetter(List<ColumnMetadata> columns) {
+        MethodHandle row = MethodHandles.empty(ROW_SETTER_TYPE);
+        for (int i = columns.size() - 1; i >= 0; i--) {
+            MethodHandle setter = MethodHandles.guardWithTest(NON_NULL_VALUE, columns.get(i).setter,
+                    MethodHandles.empty(SETTER_TYPE));
+            MethodHandle element = MethodHandles.insertArguments(
+                    MethodHandles.arrayElementGetter(Object[].class), 1, i);
+            row = MethodHandles.foldArguments(row, MethodHandles.filterArguments(setter, 1, element));
+        }
+        return row;
+    }
+
+    // Create a new instance using the constructor without parameters
+    @SuppressWarnings("unchecked")
+    private T newInstance() {
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new PersistenceException("Failed to create entity \"" + type.getSimpleName() + "\"", e);
+        }
+    }
+
+    /**
+     * Get table name of an entity class, which is the name given in the {@link Table} annotation
+     * or the simple name of the class.
+     *
+     * @param type entity class
+     * @return name of the table
+     */
+    static String tableName(Class<?> type) {
+        Table table = type.getAnnotation(Table.class);
+        return table == null || table.name().isEmpty() ? type.getSimpleName() : table.name();
+    }
+
+    /**
+     * Get column name of a field, which is the name given in the {@link Column} annotation
+     * or the name of the field.
+     *
+     * @param field entity field
+     * @return name of the column
+     */
+    static String columnName(Field field) {
+        Column column = field.getAnnotation(Column.class);
+        return column == null || column.name().isEmpty() ? field.getName() : column.name();
+    }
+
+    /**
+     * Determines whether a given field is a reference to another entity. This is used to handle foreign keys
+     * in relational database operations.
+     *
+     * @param field The field to check.
+     * @return true if the field is considered a reference to another entity; false otherwise.
+     */
+    static boolean isReferenceField(Field field) {
+        Class<?> fieldType = field.getType();
+        // Assuming non-primitive, non-String and non-wrapper fields are references to other entities.
+        return !fieldType.isPrimitive() && !fieldType.equals(String.class)
+                && !Number.class.isAssignableFrom(fieldType) && !fieldType.equals(Boolean.class)
+                && !Collection.class.isAssignableFrom(fieldType);
+    }
+
+    /**
+     * Determines whether a field is persisted at all. Static, transient and collection fields are not.
+     *
+     * @param field The field to check.
+     * @return true if the field is stored in a table column.
+     */
+    static boolean isPersistentField(Field field) {
+        int modifiers = field.getModifiers();
+        return !Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)
+                && !Collection.class.isAssignableFrom(field.getType());
+    }
+
+    /**
+     * Determines whether a field is the primary key, i.e. annotated with {@link Id} or named 'id'.
+     *
+     * @param field The field to check.
+     * @return true if the field holds the primary key.
+     */
+    static boolean isIdField(Field field) {
+        return field.isAnnotationPresent(Id.class) || "id".equals(field.getName());
+    }
+
+    // Get the id column name of a referenced entity without computing its metadata, which may refer back
+    private static String idColumnName(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            if (isPersistentField(field) && isIdField(field)) {
+                return columnName(field);
+            }
+        }
+        return "id";
+    }
+
+    // Get the entity class of a Ref field from its type argument
+    private static Class<?> referencedType(Field field) {
+        Type fieldType = field.getGenericType();
+        if (fieldType instanceof ParameterizedType parameterized
+                && parameterized.getActualTypeArguments()[0] instanceof Class<?> referenced) {
+            return referenced;
+        }
+        throw new PersistenceException("Field " + field.getName() + " of entity class "
+                + field.getDeclaringClass().getSimpleName() + " must be a Ref of an entity class.");
+    }
+
+    // Get a lookup with private access to the entity class
+    private static MethodHandles.Lookup lookupIn(Class<?> type) {
+        try {
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            throw new PersistenceException("Entity class " + type.getSimpleName() + " is not accessible.", e);
+        }
+    }
+
+    // Read a column value converted to the type of the field
+    private static Object readValue(ResultSet rs, int index, Class<?> fieldType) throws SQLException {
+        Object value;
+        if (fieldType == int.class || fieldType == Integer.class) {
+            value = rs.getInt(index);
+        } else if (fieldType == long.class || fieldType == Long.class) {
+            value = rs.getLong(index);
+        } else if (fieldType == double.class || fieldType == Double.class) {
+            value = rs.getDouble(index);
+        } else if (fieldType == float.class || fieldType == Float.class) {
+            value = rs.getFloat(index);
+        } else if (fieldType == short.class || fieldType == Short.class) {
+            value = rs.getShort(index);
+        } else if (fieldType == byte.class || fieldType == Byte.class) {
+            value = rs.getByte(index);
+        } else if (fieldType == boolean.class || fieldType == Boolean.class) {
+            value = rs.getBoolean(index);
+        } else if (fieldType == String.class) {
+            value = rs.getString(index);
+        } else {
+            value = rs.getObject(index);
+        }
+        return rs.wasNull() ? null : value;
+    }
+
+    /**
+     * Maps Java types to SQL types for use in table creation. This simplifies the creation of table
+     * definitions based on the fields of entity classes.
+     *
+     * @param type The Java Class type to map to SQL.
+     * @return A String representing the SQL type equivalent of the Java type.
+     */
+    static String javaTypeToSQLType(Class<?> type) {
+        if (int.class.equals(type) || long.class.equals(type) || short.class.equals(type) || byte.class.equals(type)
+                || boolean.class.equals(type) || Integer.class.equals(type) || Long.class.equals(type)
+                || Short.class.equals(type) || Byte.class.equals(type) || Boolean.class.equals(type)) {
+            return "INTEGER"; // Map Java integral types to SQL INTEGER type.
+        } else if (double.class.equals(type) || float.class.equals(type)
+                || Double.class.equals(type) || Float.class.equals(type)) {
+            return "REAL"; // Map Java double and float types to SQL REAL type.
+        } else if (String.class.equals(type)) {
+            return "TEXT"; // Map Java String type to SQL TEXT type.
+        }
+        // Default to TEXT for types not explicitly handled.
+        return "TEXT";
+    }
+
+    /**
+     * Builds the SQL statement for creating the entity table, including foreign key constraints
+     * for fields that reference other entities.
+     *
+     * @return The SQL statement for creating the table.
+     */
+    private String buildCreateTableSQL() {
+        List<String> fieldDefs = new ArrayList<>(); // Initialize a list to hold the field definitions.
+        List<String> foreignKeys = new ArrayList<>(); // Initialize a list to hold foreign key constraints.
+        fieldDefs.add("\"" + id.name + "\" INTEGER PRIMARY KEY AUTOINCREMENT");
+        for (ColumnMetadata column : columns) {
+            // References are represented as INTEGER foreign keys.
+            String fieldDef = "\"" + column.name + "\" " + (column.reference ? "INTEGER" : javaTypeToSQLType(column.type));
+            Column annotation = column.field.getAnnotation(Column.class);
+            if (annotation != null && !annotation.nullable()) {
+                fieldDef += " NOT NULL";
+            }
+            if (annotation != null && annotation.unique()) {
+                fieldDef += " UNIQUE";
+            }
+            fieldDefs.add(fieldDef); // Add the field definition to the list.
+            if (column.reference) {
+                foreignKeys.add("FOREIGN KEY (\"" + column.name + "\") REFERENCES \""
+                        + tableName(column.type) + "\"(\"" + idColumnName(column.type) + "\")");
+            }
+        }
+
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS "); // Start building the CREATE TABLE SQL statement.
+        sql.append("\"").append(tableName).append("\"").append(" ("); // Append the table name.
+        sql.append(String.join(", ", fieldDefs)); // Append the field definitions.
+        if (!foreignKeys.isEmpty()) {
+            sql.append(", ").append(String.join(", ", foreignKeys)); // Append foreign key constraints if there are any.
+        }
+        sql.append(")"); // Close the SQL statement.
+        return sql.toString(); // Return the complete SQL statement as a string.
+    }
+
+    /**
+     * Builds the statements creating indexes declared on the entity class and its fields.
+     * Reference columns which are not the first column of a declared index get an index
+     * of their own, so that joins and foreign key checks do not scan the table.
+     *
+     * @return The CREATE INDEX statements.
+     */
+    private List<String> buildCreateIndexSQL() {
+        List<String> statements = new ArrayList<>();
+        List<String> leadingColumns = new ArrayList<>(); // First columns of the declared indexes.
+        for (Index index : type.getAnnotationsByType(Index.class)) {
+            List<String> indexColumns = List.of(index.columns());
+            statements.add(indexSQL(index.name(), indexColumns, index.unique()));
+            leadingColumns.add(indexColumns.get(0));
+        }
+        for (ColumnMetadata column : columns) {
+            for (Index index : column.field.getAnnotationsByType(Index.class)) {
+                // A field index starts with the column of the field
+                List<String> indexColumns = new ArrayList<>();
+                indexColumns.add(column.name);
+                indexColumns.addAll(List.of(index.columns()));
+                statements.add(indexSQL(index.name(), indexColumns, index.unique()));
+                leadingColumns.add(column.name);
+            }
+        }
+        for (ColumnMetadata column : referenceColumns) {
+            if (!leadingColumns.contains(column.name)) {
+                statements.add(indexSQL("", List.of(column.name), false));
+            }
+        }
+        return List.copyOf(statements);
+    }
+
+    // buildCreateIndexSQL
+    private String indexSQL(String name, List<String> indexColumns, boolean unique) {
+        if (indexColumns.isEmpty()) {
+            throw new PersistenceException("Index of entity class " + type.getSimpleName() + " does not have any columns.");
+        }
+        for (String column : indexColumns) {
+            if (!column.equals(id.name) && !columnNames.contains(column)) {
+                throw new PersistenceException("Index of entity class " + type.getSimpleName()
+                        + " refers to unknown column " + column + ".");
+            }
+        }
+        String indexName = name.isEmpty() ? indexName(tableName, indexColumns) : name;
+        return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX IF NOT EXISTS \"" + indexName + "\" ON \""
+                + tableName + "\" (\"" + String.join("\", \"", indexColumns) + "\")";
+    }
+
+    /**
+     * Get the default name of an index, which is <code>idx_&lt;table&gt;_&lt;columns&gt;</code>.
+     *
+     * @param table   table name
+     * @param columns indexed columns
+     * @return name of the index
+     */
+    static String indexName(String table, List<String> columns) {
+        return "idx_" + table + "_" + String.join("_", columns);
+    }
+
+    /**
+     * Column of an entity table together with accessors of the field it is stored in.
+     */
+    static final class ColumnMetadata {
+        final Field field;
+        final String name;
+        final Class<?> type;
+        final boolean reference;
+        final boolean lazy;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private ColumnMetadata(Field field, MethodHandles.Lookup lookup) {
+            this.field = field;
+            this.name = columnName(field);
+            this.lazy = field.getType() == Ref.class;
+            // A Ref field is stored as a reference to the entity class it is parameterized with
+            this.type = lazy ? referencedType(field) : field.getType();
+            this.reference = isReferenceField(field);
+            try {
+                this.getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                this.setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new PersistenceException("Field " + field.getName() + " of entity class "
+                        + field.getDeclaringClass().getSimpleName() + " is not accessible.", e);
+            }
+        }
+
+        Object get(Object entity) {
+            try {
+                return (Object) getter.invokeExact(entity);
+            } catch (Throwable e) {
+                throw new PersistenceException("Failed to read field " + field.getName(), e);
+            }
+        }
+
+        void set(Object entity, Object value) {
+            try {
+                setter.invokeExact(entity, value);
+            } catch (Throwable e) {
+                throw new PersistenceException("Failed to write field " + field.getName(), e);
+            }
+        }
+    }
+}
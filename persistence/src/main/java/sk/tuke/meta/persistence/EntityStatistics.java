@@ -0,0 +1,18 @@
+package sk.tuke.meta.persistence;
+
+/**
+ * Work done with entities of one type.
+ *
+ * @param rowsRead       number of rows read into entities
+ * @param rowsWritten    number of rows inserted, updated or deleted
+ * @param statements     number of executed statements
+ * @param jdbcNanos      time spent executing statements and fetching rows
+ * @param hydrationNanos time spent creating entities from fetched rows
+ * @param referenceLoads number of referenced entities loaded
+ * @param skippedUpdates number of saves of unchanged entities which executed no statement
+ * @param partialUpdates number of updates setting only the changed columns
+ */
+public record EntityStatistics(long rowsRead, long rowsWritten, long statements, long jdbcNanos,
+                               long hydrationNanos, long referenceLoads, long skippedUpdates, long partialUpdates) {
+    public static final EntityStatistics EMPTY = new EntityStatistics(0, 0, 0, 0, 0, 0, 0, 0);
+}
@@ -0,0 +1,62 @@
+package sk.tuke.meta.persistence;
+
+import java.sql.Connection;
+
+/**
+ * PersistenceManager using mappers generated by the annotation processor.
+ * <p>
+ * For every entity annotated with {@link sk.tuke.meta.persistence.annotations.Table}
+ * the processor generates an {@link EntityMapper} named <code>&lt;Entity&gt;_Mapper</code>
+ * which reads and writes the entity fields without reflection.
+ * Entities without a generated mapper are handled by the reflective implementation.
+ */
+public class GeneratedPersistenceManager extends ReflectivePersistenceManager {
+    static final String MAPPER_SUFFIX = "_Mapper";
+
+    private static final ClassValue<EntityMapper<?>> GENERATED_MAPPERS = new ClassValue<>() {
+        @Override
+        protected EntityMapper<?> computeValue(Class<?> type) {
+            return loadGeneratedMapper(type);
+        }
+    };
+
+    public GeneratedPersistenceManager(Connection connection) {
+        super(connection);
+    }
+
+    public GeneratedPersistenceManager(Connection connection, int statementCacheSize) {
+        super(connection, statementCacheSize);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <T> EntityMapper<T> mapperFor(Class<T> type) {
+        EntityMapper<T> mapper = (EntityMapper<T>) GENERATED_MAPPERS.get(type);
+        return mapper != null ? mapper : super.mapperFor(type);
+    }
+
+    /**
+     * Check whether a generated mapper exists for an entity class.
+     *
+     * @param type entity class
+     * @return true if the entity was processed by the annotation processor
+     */
+    public static boolean hasGeneratedMapper(Class<?> type) {
+        return GENERATED_MAPPERS.get(type) != null;
+    }
+
+    // Load and instantiate the generated mapper class, or return null if the entity was not processed
+    private static EntityMapper<?> loadGeneratedMapper(Class<?> type) {
+        try {
+            Class<?> mapperClass = Class.forName(type.getName() + MAPPER_SUFFIX, true, type.getClassLoader());
+            if (!EntityMapper.class.isAssignableFrom(mapperClass)) {
+                return null;
+            }
+            return (EntityMapper<?>) mapperClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new PersistenceException("Failed to instantiate generated mapper for \"" + type.getSimpleName() + "\"", e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package sk.tuke.meta.persistence;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram of durations in nanoseconds.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} buckets of equal width,
+ * so a percentile is estimated with a relative error of at most 1/{@value #SUB_BUCKETS}
+ * using a fixed amount of memory regardless of the number of recorded values.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos duration, negative durations are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return number of recorded durations
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return sum of recorded durations
+     */
+    public long total() {
+        return total.sum();
+    }
+
+    /**
+     * @return longest recorded duration
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile of the recorded durations.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile, 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long recorded = count();
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max(); // Values recorded while iterating.
+    }
+
+    /**
+     * Remove all recorded durations.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    // record
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value; // Small values have buckets of their own.
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // percentile
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
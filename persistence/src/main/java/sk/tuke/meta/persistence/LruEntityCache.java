@@ -0,0 +1,145 @@
+package sk.tuke.meta.persistence;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link EntityCache} keeping a bounded number of entities per type and evicting
+ * the least recently used ones. Only entity types configured by
+ * {@link #configure(Class, int, Duration)} are cached.
+ */
+public class LruEntityCache implements EntityCache {
+    private final Map<Class<?>, Region> regions = new ConcurrentHashMap<>();
+
+    /**
+     * Enable caching of an entity type.
+     *
+     * @param type       entity class
+     * @param maxEntries maximum number of cached entities of the type
+     * @param timeToLive how long an entity stays cached after it was stored,
+     *                   <code>null</code> or zero keeps it until evicted
+     * @return this cache
+     */
+    public LruEntityCache configure(Class<?> type, int maxEntries, Duration timeToLive) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of cached entities must be positive");
+        }
+        long ttl = timeToLive == null || timeToLive.isZero() ? 0 : timeToLive.toNanos();
+        regions.put(type, new Region(maxEntries, ttl));
+        return this;
+    }
+
+    @Override
+    public boolean isCached(Class<?> type) {
+        return regions.containsKey(type);
+    }
+
+    @Override
+    public Object[] get(Class<?> type, long id) {
+        Region region = regions.get(type);
+        return region == null ? null : region.get(id, System.nanoTime());
+    }
+
+    @Override
+    public long stamp(Class<?> type) {
+        Region region = regions.get(type);
+        return region == null ? 0 : region.stamp();
+    }
+
+    @Override
+    public void put(Class<?> type, long id, Object[] values, long stamp) {
+        Region region = regions.get(type);
+        if (region != null) {
+            region.put(id, values, stamp, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void evict(Class<?> type, long id) {
+        Region region = regions.get(type);
+        if (region != null) {
+            region.remove(id);
+        }
+    }
+
+    @Override
+    public void clear() {
+        regions.values().forEach(Region::clear);
+    }
+
+    @Override
+    public CacheStatistics statistics(Class<?> type) {
+        Region region = regions.get(type);
+        return region == null ? CacheStatistics.EMPTY : region.statistics();
+    }
+
+    /**
+     * Cached entities of one type in least recently used order.
+     */
+    private static final class Region {
+        private final int maxEntries;
+        private final long timeToLive;
+        private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long hits;
+        private long misses;
+        private long evictions;
+        // Number of explicit evictions, values read before the last one may be outdated
+        private long invalidations;
+
+        Region(int maxEntries, long timeToLive) {
+            this.maxEntries = maxEntries;
+            this.timeToLive = timeToLive;
+        }
+
+        synchronized Object[] get(long id, long now) {
+            Entry entry = entries.get(id);
+            if (entry != null && timeToLive > 0 && now - entry.storedAt >= timeToLive) {
+                entries.remove(id); // The entry expired.
+                evictions++;
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.values;
+        }
+
+        synchronized long stamp() {
+            return invalidations;
+        }
+
+        synchronized void put(long id, Object[] values, long stamp, long now) {
+            if (stamp != invalidations) {
+                return; // The values may have been read before a write evicted them.
+            }
+            entries.put(id, new Entry(values, now));
+            var iterator = entries.values().iterator();
+            while (entries.size() > maxEntries) {
+                iterator.next();
+                iterator.remove(); // Remove the least recently used entry.
+                evictions++;
+            }
+        }
+
+        synchronized void remove(long id) {
+            entries.remove(id);
+            invalidations++;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            invalidations++;
+        }
+
+        synchronized CacheStatistics statistics() {
+            return new CacheStatistics(hits, misses, evictions, entries.size());
+        }
+    }
+
+    private record Entry(Object[] values, long storedAt) {
+    }
+}
@@ -0,0 +1,22 @@
+package sk.tuke.meta.persistence;
+
+/**
+ * Latency statistics of one operation on entities of one type.
+ * Percentiles are estimated from a histogram with a relative error of at most 12.5 %.
+ *
+ * @param count      number of calls
+ * @param totalNanos total time of all calls
+ * @param p50Nanos   median time of a call
+ * @param p99Nanos   99th percentile of the time of a call
+ * @param maxNanos   longest time of a call
+ */
+public record OperationStatistics(long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+    public static final OperationStatistics EMPTY = new OperationStatistics(0, 0, 0, 0, 0);
+
+    /**
+     * @return mean time of a call, 0 if there were no calls
+     */
+    public double meanNanos() {
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+}
@@ -0,0 +1,40 @@
+package sk.tuke.meta.persistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of {@link PersistenceManager#get}, including entities served by
+ * a session or the second-level cache.
+ */
+@Name("sk.tuke.meta.persistence.PersistenceGet")
+@Label("Persistence Get")
+@Category("Persistence")
+@Description("Loading an entity by its id")
+@StackTrace(false)
+final class PersistenceGetEvent extends jdk.jfr.Event {
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Id")
+    long id;
+
+    @Label("Found")
+    boolean found;
+
+    /**
+     * End the event and commit it if it is enabled.
+     */
+    void complete(Class<?> entityClass, long id, boolean found) {
+        end();
+        if (shouldCommit()) {
+            this.entityClass = entityClass;
+            this.id = id;
+            this.found = found;
+            commit();
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package sk.tuke.meta.persistence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * PersistenceManager allows to persist a set of entities into a database.
@@ -10,9 +13,10 @@ import java.util.Optional;
  * {@link sk.tuke.meta.persistence.PersistenceException}.
  * <p>
  * Implementations of this interface requireс database connection
- * as а constructor argument.
+ * as а constructor argument. Closing the manager releases resources
+ * it holds for the connection, the connection itself stays open.
  */
-public interface PersistenceManager {
+public interface PersistenceManager extends AutoCloseable {
 
     /**
      * Create database tables for specified entity classes
@@ -40,6 +44,69 @@ public interface PersistenceManager {
      */
     <T> List<T> getAll(Class<T> type);
 
+    /**
+     * Get a page of entities ordered by primary key, starting after the given key.
+     * Pages are read with <code>WHERE id &gt; ? ORDER BY id LIMIT ?</code>,
+     * so reading a page costs the same no matter how deep into the table it is.
+     *
+     * @param type    entity class
+     * @param afterId primary key of the last entity of the previous page, 0 for the first page
+     * @param limit   maximum number of entities in the page, positive
+     * @return entities with a greater primary key in ascending order
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    <T> List<T> getPage(Class<T> type, long afterId, int limit);
+
+    /**
+     * Get a page of entities in descending primary key order, starting before the given key.
+     *
+     * @param type     entity class
+     * @param beforeId primary key of the last entity of the previous page,
+     *                 {@link Long#MAX_VALUE} for the first page
+     * @param limit    maximum number of entities in the page, positive
+     * @return entities with a lower primary key in descending order
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    <T> List<T> getPageDescending(Class<T> type, long beforeId, int limit);
+
+    /**
+     * Start a query selecting entities of specified type by conditions
+     * evaluated by the database.
+     *
+     * @param type entity class
+     * @return a new query without conditions
+     */
+    default <T> Query<T> query(Class<T> type) {
+        return new Query<>(type, this);
+    }
+
+    /**
+     * Get entities selected by a query, usually called through {@link Query#list()}.
+     *
+     * @param query the query
+     * @return the selected entities
+     */
+    <T> List<T> find(Query<T> query);
+
+    /**
+     * Count entities satisfying the conditions of a query, usually called through {@link Query#count()}.
+     *
+     * @param query the query
+     * @return number of matching entities
+     */
+    long count(Query<?> query);
+
+    /**
+     * Stream all entities of specified type.
+     * Rows are read from the database as the stream is consumed, so the entities
+     * do not have to fit into memory at once. The stream holds an open result set
+     * and has to be closed, e.g. in a try-with-resources statement.
+     *
+     * @param type entity class
+     * @return a lazily populated stream of all entities stored in the database.
+     */
+    <T> Stream<T> stream(Class<T> type);
+
     /**
      * Save entity into a database.
      * If entity has a non-zero identifier, manager would try to perform
@@ -49,10 +116,105 @@ public interface PersistenceManager {
      */
     <T> void save(T entity);
 
+    /**
+     * Save all entities in a single transaction.
+     * Entities are inserted or updated like in {@link #save(Object)}, but statements
+     * are executed in batches per entity type. Entity types are saved before the types
+     * referencing them, so new entities may reference other new entities of the collection.
+     *
+     * @param entities the entities to be saved
+     */
+    <T> void saveAll(Collection<T> entities);
+
+    /**
+     * Save an entity with an externally assigned identifier without reading it first.
+     * The entity is inserted, or the existing row with the same identifier is updated,
+     * by a single <code>INSERT ... ON CONFLICT DO UPDATE</code> statement.
+     *
+     * @param entity the entity to be saved, its identifier must not be 0
+     */
+    <T> void upsert(T entity);
+
+    /**
+     * Upsert all entities in a single transaction like in {@link #upsert(Object)},
+     * with statements executed in batches per entity type.
+     *
+     * @param entities the entities to be saved, their identifiers must not be 0
+     */
+    <T> void upsertAll(Collection<T> entities);
+
     /**
      * Delete the entity from the database.
      *
      * @param entity the entity to be deleted
      */
     void delete(Object entity);
+
+    /**
+     * Delete entities by their primary keys in a single transaction, without loading them.
+     * Keys without a row are ignored.
+     *
+     * @param type entity class
+     * @param ids  primary key values
+     * @return number of deleted entities
+     */
+    <T> long deleteAll(Class<T> type, long... ids);
+
+    /**
+     * Delete entities satisfying the conditions of a query in a single transaction,
+     * without loading them. Usually called through {@link Query#delete()}.
+     *
+     * @param query the query selecting the entities
+     * @return number of deleted entities
+     */
+    long deleteWhere(Query<?> query);
+
+    /**
+     * Begin a transaction. Until it is committed or rolled back, all operations
+     * of the manager are part of it. Beginning a transaction inside another one
+     * creates a savepoint, which is released by {@link #commit()}
+     * and rolled back by {@link #rollback()} without ending the outer transaction.
+     */
+    void begin();
+
+    /**
+     * Commit the innermost transaction started by {@link #begin()}.
+     * If the commit fails, the transaction stays active until it is rolled back.
+     */
+    void commit();
+
+    /**
+     * Roll back the innermost transaction started by {@link #begin()}.
+     * Entities inserted in it get their identifier reset to 0.
+     */
+    void rollback();
+
+    /**
+     * Run work in a transaction, which is committed when the work completes
+     * and rolled back when the work or the commit throws an exception.
+     *
+     * @param work operations to run, receiving this manager
+     */
+    default void inTransaction(Consumer<PersistenceManager> work) {
+        begin();
+        try {
+            work.accept(this);
+            commit();
+        } catch (RuntimeException | Error e) {
+            try {
+                rollback();
+            } catch (RuntimeException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Release resources held by the manager, e.g. cached statements.
+     * The database connection is not closed.
+     */
+    @Override
+    default void close() {
+    }
 }
@@ -0,0 +1,107 @@
+package sk.tuke.meta.persistence;
+
+import java.util.Set;
+
+/**
+ * Metrics of the work done by a persistence manager, per operation and entity type.
+ * <p>
+ * A manager with metrics set by {@link ReflectivePersistenceManager#setMetrics} reports
+ * every operation, executed statement, read and written row, loaded reference and skipped
+ * or partial update.
+ * Managers without metrics do not measure anything. Implementations must be thread-safe,
+ * since one instance may be shared by several managers.
+ */
+public interface PersistenceMetrics {
+
+    /**
+     * Measured operations of {@link PersistenceManager}.
+     */
+    enum Operation {
+        GET, GET_ALL, GET_PAGE, FIND, COUNT, STREAM, SAVE, SAVE_ALL, UPSERT, UPSERT_ALL, DELETE, DELETE_ALL, DELETE_WHERE
+    }
+
+    /**
+     * Record a completed operation, including a failed one.
+     *
+     * @param operation the operation
+     * @param type      entity class, {@link Object} for operations on entities of several types
+     * @param nanos     duration of the operation
+     */
+    void recordOperation(Operation operation, Class<?> type, long nanos);
+
+    /**
+     * Record an executed statement.
+     *
+     * @param type  entity class of the table
+     * @param nanos time spent executing the statement
+     */
+    void recordStatement(Class<?> type, long nanos);
+
+    /**
+     * Record fetching a row of a result set.
+     *
+     * @param type  entity class of the table
+     * @param nanos time spent fetching the row
+     */
+    void recordFetch(Class<?> type, long nanos);
+
+    /**
+     * Record creating an entity from a row.
+     *
+     * @param type  entity class
+     * @param nanos time spent creating the entity
+     */
+    void recordRowRead(Class<?> type, long nanos);
+
+    /**
+     * Record inserted, updated or deleted rows.
+     *
+     * @param type entity class
+     * @param rows number of rows
+     */
+    void recordRowsWritten(Class<?> type, long rows);
+
+    /**
+     * Record loading a referenced entity.
+     *
+     * @param type class of the referenced entity
+     */
+    void recordReferenceLoad(Class<?> type);
+
+    /**
+     * Record saving an entity which was not changed since it was loaded, so no statement was executed.
+     *
+     * @param type entity class
+     */
+    void recordSkippedUpdate(Class<?> type);
+
+    /**
+     * Record an update setting only the changed columns of an entity.
+     *
+     * @param type entity class
+     */
+    void recordPartialUpdate(Class<?> type);
+
+    /**
+     * @param operation the operation
+     * @param type      entity class
+     * @return latency statistics of the operation on entities of the type
+     */
+    OperationStatistics operationStatistics(Operation operation, Class<?> type);
+
+    /**
+     * @param type entity class
+     * @return statistics of rows, statements and references of the type
+     */
+    EntityStatistics entityStatistics(Class<?> type);
+
+    /**
+     * @return entity classes with recorded metrics
+     */
+    Set<Class<?>> types();
+
+    /**
+     * Remove all recorded metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,39 @@
+package sk.tuke.meta.persistence;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link DefaultPersistenceMetrics}.
+ * Keys of operation attributes are <code>Entity.OPERATION</code>, e.g. <code>Person.GET</code>,
+ * keys of the other attributes are simple names of entity classes.
+ */
+public interface PersistenceMetricsMXBean {
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Double> getOperationMeanMillis();
+
+    Map<String, Double> getOperationP50Millis();
+
+    Map<String, Double> getOperationP99Millis();
+
+    Map<String, Double> getOperationMaxMillis();
+
+    Map<String, Long> getRowsRead();
+
+    Map<String, Long> getRowsWritten();
+
+    Map<String, Long> getStatements();
+
+    Map<String, Long> getReferenceLoads();
+
+    Map<String, Long> getSkippedUpdates();
+
+    Map<String, Long> getPartialUpdates();
+
+    Map<String, Double> getJdbcMillis();
+
+    Map<String, Double> getHydrationMillis();
+
+    void reset();
+}
@@ -0,0 +1,41 @@
+package sk.tuke.meta.persistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of {@link PersistenceManager#save} and {@link PersistenceManager#saveAll}.
+ */
+@Name("sk.tuke.meta.persistence.PersistenceSave")
+@Label("Persistence Save")
+@Category("Persistence")
+@Description("Inserting or updating entities")
+@StackTrace(false)
+final class PersistenceSaveEvent extends jdk.jfr.Event {
+    @Label("Entity Class")
+    @Description("Class of the saved entities, Object for entities of several classes")
+    Class<?> entityClass;
+
+    @Label("Id")
+    @Description("Id of the saved entity, 0 when saving several entities")
+    long id;
+
+    @Label("Row Count")
+    int rowCount;
+
+    /**
+     * End the event and commit it if it is enabled.
+     */
+    void complete(Class<?> entityClass, long id, int rowCount) {
+        end();
+        if (shouldCommit()) {
+            this.entityClass = entityClass;
+            this.id = id;
+            this.rowCount = rowCount;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package sk.tuke.meta.persistence;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Thread-safe PersistenceManager backed by a pool of SQLite connections.
+ * <p>
+ * The database is opened in WAL journal mode with one writer connection and a number of
+ * read-only connections. Reads ({@link #get}, {@link #getAll}, pages and streams) borrow
+ * one of the read-only connections, so they run in parallel and are not blocked by writes.
+ * Writes (saves, upserts, deletes and {@link #createTables}) are serialized on the writer
+ * connection, which is what SQLite allows anyway.
+ * <p>
+ * A transaction started by {@link #begin()} holds the writer connection for the calling thread
+ * until it is committed or rolled back. Reads of that thread use the writer meanwhile,
+ * so they see the uncommitted writes of the transaction.
+ * <p>
+ * Every connection has its own manager with its own statement cache. A second-level
+ * {@link EntityCache} set by {@link #setEntityCache}, {@link PersistenceMetrics} set by
+ * {@link #setMetrics} and a {@link SlowQueryLog} set by {@link #setSlowQueryLog}
+ * are shared by all of them.
+ * Sessions are not supported, since consecutive calls may use different connections.
+ */
+public class PooledPersistenceManager implements PersistenceManager {
+    private final ReflectivePersistenceManager writer;
+    private final List<ReflectivePersistenceManager> readers = new ArrayList<>();
+    private final BlockingQueue<ReflectivePersistenceManager> idleReaders;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Read-only connection in use by the thread, reused by nested reads of the thread
+    private final ThreadLocal<BorrowedReader> borrowedReader = new ThreadLocal<>();
+
+    /**
+     * Open a pool using mappers generated by the annotation processor.
+     *
+     * @param url         JDBC URL of a file database, e.g. <code>jdbc:sqlite:test.db</code>
+     * @param readerCount number of read-only connections
+     */
+    public PooledPersistenceManager(String url, int readerCount) {
+        this(url, readerCount, GeneratedPersistenceManager::new);
+    }
+
+    /**
+     * Open a pool creating the manager of every connection with the given factory.
+     *
+     * @param url            JDBC URL of a file database, e.g. <code>jdbc:sqlite:test.db</code>
+     * @param readerCount    number of read-only connections
+     * @param managerFactory creates the manager of a pooled connection
+     */
+    public PooledPersistenceManager(String url, int readerCount,
+                                    Function<Connection, ? extends ReflectivePersistenceManager> managerFactory) {
+        if (readerCount <= 0) {
+            throw new IllegalArgumentException("Number of readers must be positive");
+        }
+        this.idleReaders = new ArrayBlockingQueue<>(readerCount);
+        try {
+            // The writer is opened first, it switches the database to WAL mode
+            SQLiteConfig writerConfig = new SQLiteConfig();
+            writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            this.writer = open(url, writerConfig, managerFactory);
+            SQLiteConfig readerConfig = new SQLiteConfig();
+            readerConfig.setReadOnly(true);
+            for (int i = 0; i < readerCount; i++) {
+                ReflectivePersistenceManager reader = open(url, readerConfig, managerFactory);
+                readers.add(reader);
+                idleReaders.add(reader);
+            }
+        } catch (SQLException e) {
+            close();
+            throw new PersistenceException("Failed to open connection pool for " + url, e);
+        }
+    }
+
+    @Override
+    public void createTables(Class<?>... types) {
+        writeLock.lock();
+        try {
+            writer.createTables(types);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> Optional<T> get(Class<T> type, long id) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.get(type, id); // Reads within a transaction see its writes.
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().get(type, id);
+        } finally {
+            releaseReader(borrowed);
+        }
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.getAll(type); // Reads within a transaction see its writes.
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().getAll(type);
+        } finally {
+            releaseReader(borrowed);
+        }
+    }
+
+    @Override
+    public <T> List<T> getPage(Class<T> type, long afterId, int limit) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.getPage(type, afterId, limit); // Reads within a transaction see its writes.
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().getPage(type, afterId, limit);
+        } finally {
+            releaseReader(borrowed);
+        }
+    }
+
+    @Override
+    public <T> List<T> getPageDescending(Class<T> type, long beforeId, int limit) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.getPageDescending(type, beforeId, limit); // Reads within a transaction see its writes.
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().getPageDescending(type, beforeId, limit);
+        } finally {
+            releaseReader(borrowed);
+        }
+    }
+
+    @Override
+    public <T> List<T> find(Query<T> query) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.find(query);
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().find(query);
+        } finally {
+            releaseReader(borrowed);
+        }
+    }
+
+    @Override
+    public long count(Query<?> query) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.count(query);
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().count(query);
+        } finally {
+            releaseReader(borrowed);
+        }
+    }
+
+    /**
+     * Streams all entities of the specified type. The stream keeps its read-only connection
+     * until it is closed, so it has to be closed to return the connection to the pool.
+     * Other reads of the thread meanwhile, e.g. loading references of streamed entities,
+     * use the same connection, so they do not wait for the connection the thread holds itself.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return writer.stream(type);
+        }
+        BorrowedReader borrowed = acquireReader();
+        try {
+            return borrowed.reader().stream(type).onClose(() -> releaseReader(borrowed));
+        } catch (RuntimeException e) {
+            releaseReader(borrowed);
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> void save(T entity) {
+        writeLock.lock();
+        try {
+            writer.save(entity);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> void saveAll(Collection<T> entities) {
+        writeLock.lock();
+        try {
+            writer.saveAll(entities);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> void upsert(T entity) {
+        writeLock.lock();
+        try {
+            writer.upsert(entity);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> void upsertAll(Collection<T> entities) {
+        writeLock.lock();
+        try {
+            writer.upsertAll(entities);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(Object entity) {
+        writeLock.lock();
+        try {
+            writer.delete(entity);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> long deleteAll(Class<T> type, long... ids) {
+        writeLock.lock();
+        try {
+            return writer.deleteAll(type, ids);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long deleteWhere(Query<?> query) {
+        writeLock.lock();
+        try {
+            return writer.deleteWhere(query);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Begin a transaction on the writer connection, waiting until other threads finish their writes.
+     * Nested transactions of the same thread create savepoints.
+     */
+    @Override
+    public void begin() {
+        writeLock.lock();
+        try {
+            writer.begin();
+        } catch (RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Commit the innermost transaction of the calling thread. The writer connection
+     * is released when the outermost transaction is committed. When the commit fails,
+     * the transaction stays active and the writer is released by {@link #rollback()}.
+     */
+    @Override
+    public void commit() {
+        checkTransactionOwner();
+        writer.commit();
+        writeLock.unlock(); // A failed commit keeps the transaction and the lock for a rollback.
+    }
+
+    /**
+     * Roll back the innermost transaction of the calling thread.
+     */
+    @Override
+    public void rollback() {
+        checkTransactionOwner();
+        try {
+            writer.rollback();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Set the second-level cache shared by all pooled connections.
+     *
+     * @param entityCache the cache or <code>null</code> to disable caching
+     */
+    public void setEntityCache(EntityCache entityCache) {
+        writeLock.lock();
+        try {
+            writer.setEntityCache(entityCache);
+        } finally {
+            writeLock.unlock();
+        }
+        for (ReflectivePersistenceManager reader : readers) {
+            reader.setEntityCache(entityCache);
+        }
+    }
+
+    /**
+     * Set metrics recording the operations of all connections.
+     *
+     * @param metrics the metrics or <code>null</code> to disable recording
+     */
+    public void setMetrics(PersistenceMetrics metrics) {
+        writeLock.lock();
+        try {
+            writer.setMetrics(metrics);
+        } finally {
+            writeLock.unlock();
+        }
+        for (ReflectivePersistenceManager reader : readers) {
+            reader.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Set the log of slow statements of all connections.
+     *
+     * @param slowQueryLog the log or <code>null</code> to disable logging
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        writeLock.lock();
+        try {
+            writer.setSlowQueryLog(slowQueryLog);
+        } finally {
+            writeLock.unlock();
+        }
+        for (ReflectivePersistenceManager reader : readers) {
+            reader.setSlowQueryLog(slowQueryLog);
+        }
+    }
+
+    /**
+     * @return number of read-only connections
+     */
+    public int readerCount() {
+        return readers.size();
+    }
+
+    /**
+     * @return number of read-only connections which are not in use at the moment
+     */
+    public int idleReaderCount() {
+        return idleReaders.size();
+    }
+
+    /**
+     * Close all pooled connections. Must not be called while the pool is in use.
+     */
+    @Override
+    public void close() {
+        List<Exception> failures = new ArrayList<>();
+        List<ReflectivePersistenceManager> managers = new ArrayList<>(readers);
+        if (writer != null) {
+            managers.add(writer);
+        }
+        for (ReflectivePersistenceManager manager : managers) {
+            try {
+                manager.close();
+            } catch (RuntimeException e) {
+                failures.add(e);
+            }
+            try {
+                manager.connection().close(); // Managers do not close the connection they were given.
+            } catch (SQLException e) {
+                failures.add(e);
+            }
+        }
+        readers.clear();
+        idleReaders.clear();
+        if (!failures.isEmpty()) {
+            PersistenceException exception = new PersistenceException("Failed to close connection pool", failures.get(0));
+            failures.stream().skip(1).forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    // commit rollback
+    private void checkTransactionOwner() {
+        if (!writeLock.isHeldByCurrentThread()) {
+            throw new PersistenceException("No transaction is active in the current thread");
+        }
+    }
+
+    // get getAll getPage getPageDescending find count stream
+    private BorrowedReader acquireReader() {
+        BorrowedReader borrowed = borrowedReader.get();
+        if (borrowed != null && borrowed.reuse()) {
+            return borrowed; // The thread already holds a reader, e.g. for an open stream.
+        }
+        try {
+            borrowed = new BorrowedReader(idleReaders.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for a connection", e);
+        }
+        borrowedReader.set(borrowed);
+        return borrowed;
+    }
+
+    // get getAll getPage getPageDescending find count stream, a stream may be closed by another thread
+    private void releaseReader(BorrowedReader borrowed) {
+        if (borrowed.release()) {
+            idleReaders.add(borrowed.reader());
+        }
+    }
+
+    // constructor
+    private ReflectivePersistenceManager open(String url, SQLiteConfig config,
+                                              Function<Connection, ? extends ReflectivePersistenceManager> managerFactory)
+            throws SQLException {
+        Connection connection = config.createConnection(url);
+        ReflectivePersistenceManager manager = managerFactory.apply(connection);
+        manager.setReferenceLoader(this); // Lazy references are loaded through the pool.
+        return manager;
+    }
+
+    /**
+     * Read-only connection borrowed from the pool, counting the reads and open streams using it.
+     * It returns to the pool when the last of them finishes.
+     */
+    private static final class BorrowedReader {
+        private final ReflectivePersistenceManager reader;
+        private int uses = 1;
+
+        BorrowedReader(ReflectivePersistenceManager reader) {
+            this.reader = reader;
+        }
+
+        ReflectivePersistenceManager reader() {
+            return reader;
+        }
+
+        // Use the reader once more, unless it was already returned to the pool
+        synchronized boolean reuse() {
+            if (uses == 0) {
+                return false;
+            }
+            uses++;
+            return true;
+        }
+
+        // Finish one use, true if it was the last one
+        synchronized boolean release() {
+            return --uses == 0;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package sk.tuke.meta.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Query selecting entities of one type by conditions on their columns.
+ * <p>
+ * The conditions, ordering and limit are translated to the <code>WHERE</code>, <code>ORDER BY</code>
+ * and <code>LIMIT</code> clauses of a single SQL statement, so the filtering is done by the database:
+ * <pre>
+ * List&lt;Person&gt; persons = manager.query(Person.class)
+ *         .where("age", GT, 30).and("department", EQ, department)
+ *         .orderBy("surname").limit(50).list();
+ * </pre>
+ * Columns are referred to by their column names. A value of a reference column may be
+ * the referenced entity or its id. Comparing with <code>null</code> using {@link Operator#EQ}
+ * or {@link Operator#NE} is translated to <code>IS NULL</code> and <code>IS NOT NULL</code>.
+ *
+ * @param <T> the entity type
+ */
+public final class Query<T> {
+    /**
+     * Comparison operators of conditions.
+     */
+    public enum Operator {
+        EQ("="), NE("<>"), LT("<"), LE("<="), GT(">"), GE(">="), LIKE("LIKE");
+
+        private final String sql;
+
+        Operator(String sql) {
+            this.sql = sql;
+        }
+
+        /**
+         * @return the SQL operator
+         */
+        public String sql() {
+            return sql;
+        }
+    }
+
+    /**
+     * Condition comparing a column with a value.
+     */
+    record Condition(String column, Operator operator, Object value) {
+    }
+
+    /**
+     * Ordering by a column.
+     */
+    record Order(String column, boolean descending) {
+    }
+
+    private final Class<T> type;
+    private final PersistenceManager manager;
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<Order> ordering = new ArrayList<>();
+    private int limit = -1;
+
+    Query(Class<T> type, PersistenceManager manager) {
+        this.type = type;
+        this.manager = manager;
+    }
+
+    /**
+     * Add a condition the selected entities must satisfy.
+     *
+     * @param column   column name
+     * @param operator comparison operator
+     * @param value    value to compare the column with
+     * @return this query
+     */
+    public Query<T> where(String column, Operator operator, Object value) {
+        conditions.add(new Condition(column, operator, value));
+        return this;
+    }
+
+    /**
+     * Add another condition, same as {@link #where}.
+     *
+     * @param column   column name
+     * @param operator comparison operator
+     * @param value    value to compare the column with
+     * @return this query
+     */
+    public Query<T> and(String column, Operator operator, Object value) {
+        return where(column, operator, value);
+    }
+
+    /**
+     * Order the entities by a column in ascending order, after the orderings added before.
+     *
+     * @param column column name
+     * @return this query
+     */
+    public Query<T> orderBy(String column) {
+        ordering.add(new Order(column, false));
+        return this;
+    }
+
+    /**
+     * Order the entities by a column in descending order, after the orderings added before.
+     *
+     * @param column column name
+     * @return this query
+     */
+    public Query<T> orderByDescending(String column) {
+        ordering.add(new Order(column, true));
+        return this;
+    }
+
+    /**
+     * Limit the number of selected entities.
+     *
+     * @param limit maximum number of entities
+     * @return this query
+     */
+    public Query<T> limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @return the selected entities
+     */
+    public List<T> list() {
+        return manager.find(this);
+    }
+
+    /**
+     * @return the first selected entity or an empty Optional if no entity matches
+     */
+    public Optional<T> first() {
+        int previousLimit = limit;
+        limit = 1;
+        try {
+            return list().stream().findFirst();
+        } finally {
+            limit = previousLimit;
+        }
+    }
+
+    /**
+     * @return number of entities satisfying the conditions, ignoring the limit
+     */
+    public long count() {
+        return manager.count(this);
+    }
+
+    /**
+     * Delete the entities satisfying the conditions without loading them.
+     *
+     * @return number of deleted entities
+     */
+    public long delete() {
+        return manager.deleteWhere(this);
+    }
+
+    /**
+     * @return the queried entity class
+     */
+    public Class<T> type() {
+        return type;
+    }
+
+    List<Condition> conditions() {
+        return conditions;
+    }
+
+    List<Order> ordering() {
+        return ordering;
+    }
+
+    /**
+     * @return maximum number of entities or -1 if not limited
+     */
+    int limit() {
+        return limit;
+    }
+}
@@ -0,0 +1,90 @@
+package sk.tuke.meta.persistence;
+
+import java.util.function.Supplier;
+
+/**
+ * Lazily loaded reference to another entity.
+ * <p>
+ * An entity field of type <code>Ref&lt;Department&gt;</code> is stored as a foreign key
+ * like a field of type <code>Department</code>, but loading the entity reads only the key.
+ * The referenced entity is loaded on the first call of {@link #get()}.
+ *
+ * @param <T> the referenced entity type
+ */
+public final class Ref<T> {
+    private final Class<T> type;
+    private final long id;
+    private Supplier<T> loader;
+    private T entity;
+
+    private Ref(Class<T> type, long id, T entity, Supplier<T> loader) {
+        this.type = type;
+        this.id = id;
+        this.entity = entity;
+        this.loader = loader;
+    }
+
+    /**
+     * Create a reference to an entity, e.g. to assign it to a field before saving.
+     *
+     * @param entity the referenced entity
+     * @return loaded reference
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Ref<T> of(T entity) {
+        return new Ref<>((Class<T>) entity.getClass(), 0, entity, null);
+    }
+
+    /**
+     * Create a reference which loads the entity on first access.
+     *
+     * @param type   referenced entity class
+     * @param id     foreign key value
+     * @param loader loads the entity, returning <code>null</code> if it does not exist
+     * @return reference which is not loaded yet
+     */
+    static <T> Ref<T> lazy(Class<T> type, long id, Supplier<T> loader) {
+        return new Ref<>(type, id, null, loader);
+    }
+
+    /**
+     * Get the referenced entity, loading it on first access.
+     *
+     * @return the referenced entity or <code>null</code> if it does not exist
+     */
+    public T get() {
+        if (loader != null) {
+            entity = loader.get();
+            loader = null;
+        }
+        return entity;
+    }
+
+    /**
+     * @return true if the referenced entity was already loaded
+     */
+    public boolean isLoaded() {
+        return loader == null;
+    }
+
+    /**
+     * @return referenced entity class
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Get the foreign key read from the database without loading the entity.
+     *
+     * @return id of the referenced entity, or 0 for references created by {@link #of(Object)}
+     */
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "Ref<" + type.getSimpleName() + ">(" + (isLoaded() ? entity : String.valueOf(id)) + ")";
+    }
+}
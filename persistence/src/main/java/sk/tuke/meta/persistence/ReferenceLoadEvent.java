@@ -0,0 +1,39 @@
+package sk.tuke.meta.persistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of loading one referenced entity on its own, i.e. a lazy
+ * {@link Ref} or a reference which was not loaded in advance. References loaded
+ * in advance are visible as {@link SqlExecuteEvent}s of their queries.
+ */
+@Name("sk.tuke.meta.persistence.ReferenceLoad")
+@Label("Reference Load")
+@Category("Persistence")
+@Description("Loading a referenced entity")
+final class ReferenceLoadEvent extends jdk.jfr.Event {
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Id")
+    long id;
+
+    @Label("Lazy")
+    boolean lazy;
+
+    /**
+     * End the event and commit it if it is enabled.
+     */
+    void complete(Class<?> entityClass, long id, boolean lazy) {
+        end();
+        if (shouldCommit()) {
+            this.entityClass = entityClass;
+            this.id = id;
+            this.lazy = lazy;
+            commit();
+        }
+    }
+}
@@ -1,72 +1,85 @@
 package sk.tuke.meta.persistence;
 
-import sk.tuke.meta.persistence.annotations.Column;
-import sk.tuke.meta.persistence.annotations.Id;
-import sk.tuke.meta.persistence.annotations.Table;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Field;
+import sk.tuke.meta.persistence.StatementCache.Operation;
+
 import java.sql.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ReflectivePersistenceManager implements PersistenceManager {
+    private static final int DELETE_CHUNK_SIZE = 500;
+    private static final int STREAM_CHUNK_SIZE = 1000;
+
     private final Connection connection;
+    private final StatementCache statements;
+    private final EntityMapper.Context context = new ManagerContext();
+    // Settings may be changed from another thread than the one using the manager, e.g. by a pool
+    private volatile Session session;
+    private volatile EntityCache entityCache;
+    private volatile PersistenceMetrics metrics;
+    private volatile SlowQueryLog slowQueryLog;
+    private volatile PersistenceManager referenceLoader = this;
+    private volatile int fetchSize;
+    private final Deque<TransactionLevel> transactions = new ArrayDeque<>();
+    private final List<Object> transactionInserts = new ArrayList<>();
+    // Entities evicted from the second-level cache in the transaction, evicted again after the commit
+    private final Set<CacheKey> transactionEvictions = new LinkedHashSet<>();
+    private boolean restoreAutoCommit;
 
     public ReflectivePersistenceManager(Connection connection) {
+        this(connection, StatementCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param connection         database connection
+     * @param statementCacheSize maximum number of prepared statements kept open, 0 disables caching
+     */
+    public ReflectivePersistenceManager(Connection connection, int statementCacheSize) {
         this.connection = connection;
+        this.statements = new StatementCache(connection, statementCacheSize);
     }
 
+    /**
+     * Creates missing tables and their indexes for the given entity classes. If no classes are given,
+     * all entities listed in the {@link SchemaCatalog} generated by the annotation processor are used.
+     * Existing tables are found by a single query of <code>sqlite_master</code> and left untouched,
+     * tables are created so that referenced tables precede the tables referencing them.
+     *
+     * @param types classes to create tables for.
+     * @throws PersistenceException If no classes are given and no schema catalog is found.
+     */
     @Override
     public void createTables(Class<?>... types) {
-        try {
-            ClassLoader classLoader = getClass().getClassLoader();
-
-            try (InputStream inputStream = classLoader.getResourceAsStream("data.sql")) {
-                if (inputStream != null) {
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-                        String query = reader.lines().collect(Collectors.joining(System.lineSeparator()));
-
-                        String[] queries = query.split(";");
-
-                        Statement statement = this.connection.createStatement();
-
-                        for (String singleQuery : queries) {
-                            statement.executeUpdate(singleQuery);
-                        }
-                    }
-                } else {
-                    System.out.println("data.sql sa nenaslo");
-                    throw new PersistenceException("Chybicka");
-                }
-            } catch (IOException e) {
-                throw new PersistenceException("Chybicka");
+        List<SchemaCatalog.TableDefinition> tables = tableDefinitions(types);
+        Set<String> existingTables = existingTables();
+        for (SchemaCatalog.TableDefinition table : tables) {
+            // Execute the SQL statement to create the table, followed by its indexes
+            if (existingTables.add(table.name().toLowerCase(Locale.ROOT))) {
+                executeSQL(table.createTableSql());
+                table.createIndexSql().forEach(this::executeSQL);
             }
-        } catch (Exception e) {
-            throw new PersistenceException(e.getMessage());
         }
-//        // Loop through each class in the provided array
-//        for (Class<?> cls : types) {
-//            // Generate SQL field definitions based on entity class fields
-//            List<String> fieldDefinitions = getFieldDefinitions(cls);
-//            // Generate SQL foreign key constraints for fields that reference other entities
-//            List<String> foreignKeys = getForeignKeyConstraints(cls);
-//
-//            // Build the SQL statement for creating a table with field definitions and foreign key constraints
-//            String sql = buildCreateTableSQL(cls.getSimpleName(), fieldDefinitions, foreignKeys);
-//            // Execute the SQL statement to create the table
-//            executeSQL(sql);
-//        }
     }
 
-
-
     /**
      * Retrieves a single entity of the specified type by its ID.
      *
@@ -77,15 +90,56 @@ public class ReflectivePersistenceManager implements PersistenceManager {
      */
     @Override
     public <T> Optional<T> get(Class<T> type, long id) {
-        // SQL statement to select all columns from a table matching the entity's class name where the ID matches the provided ID.
-        String sql = "SELECT * FROM " + "\"" + type.getSimpleName() + "\"" + " WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        PersistenceGetEvent event = new PersistenceGetEvent();
+        event.begin();
+        long start = startTimer();
+        Optional<T> entity = Optional.empty();
+        try {
+            entity = getEntity(type, id);
+            return entity;
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.GET, type, start);
+            event.complete(type, id, entity.isPresent());
+        }
+    }
+
+    // get
+    private <T> Optional<T> getEntity(Class<T> type, long id) {
+        if (session != null) {
+            T tracked = session.find(type, id); // Entities tracked by the session are not loaded again.
+            if (tracked != null) {
+                return Optional.of(tracked);
+            }
+        }
+        EntityMapper<T> mapper = mapperFor(type);
+        EntityCache cache = entityCache;
+        long stamp = 0;
+        if (cache != null && cache.isCached(type)) {
+            stamp = cache.stamp(type); // Taken before reading, so a row replaced meanwhile is not cached.
+            Object[] cached = cache.get(type, id); // Entities in the second-level cache are not loaded again.
+            if (cached != null) {
+                T entity = mapper.create(id, cached, context); // Every caller gets its own instance.
+                if (session != null) {
+                    session.register(type, id, entity);
+                    session.takeSnapshot(type, id, cached);
+                }
+                return Optional.of(entity);
+            }
+        }
+        // SQL statement to select all columns of the entity's table where the ID matches the provided ID.
+        try (StatementCache.Lease lease = statements.acquire(type, Operation.GET,
+                () -> selectSql(mapper) + " WHERE \"" + mapper.idColumn() + "\" = ?")) {
+            PreparedStatement stmt = lease.statement();
             stmt.setLong(1, id); // Set the ID parameter in the SQL query.
-            ResultSet rs = stmt.executeQuery(); // Execute
-            if (rs.next()) {
-                T instance = type.getDeclaredConstructor().newInstance(); // Instantiate a new instance of the entity class.
-                populateEntityFromResultSet(instance, type, rs); // Populate the instance with data from the result set.
-                return Optional.of(instance); // Return the populated instance.
+            try (QueryResult result = executeQuery(stmt, lease.sql(), type)) { // Execute
+                if (result.next()) {
+                    T entity = readRow(mapper, result.resultSet(), context); // Populate the entity from the row.
+                    // Uncommitted rows are not shared, including those of transactions of the connection's owner
+                    if (cache != null && transactions.isEmpty() && connection.getAutoCommit()) {
+                        cache.put(type, id, mapper.values(entity, context), stamp);
+                    }
+                    return Optional.of(entity);
+                }
             }
         } catch (Exception e) {
             throw new PersistenceException("Failed to get entity \"" + type.getSimpleName() + "\" with ID: " + id, e);
@@ -96,6 +150,8 @@ public class ReflectivePersistenceManager implements PersistenceManager {
 
     /**
      * Retrieves all entities of the specified type.
+     * Referenced entities are loaded before the rows, with one query per reference
+     * rather than one query per row.
      *
      * @param type The Class of the entities to retrieve.
      * @param <T>  The type parameter of the entities.
@@ -103,60 +159,327 @@ public class ReflectivePersistenceManager implements PersistenceManager {
      */
     @Override
     public <T> List<T> getAll(Class<T> type) {
-        List<T> resultList = new ArrayList<>(); // Initialize a list to hold the result entities.
-        // SQL statement to select all columns from the table that matches the entity's class name.
-        String sql = "SELECT * FROM \"" + type.getSimpleName() + "\"";
-        try (Statement stmt = connection.createStatement(); // Create a statement object.
-             ResultSet rs = stmt.executeQuery(sql)) { // Execute the query and get the result set.
-            while (rs.next()) {
-                T instance = type.getDeclaredConstructor().newInstance(); // Instantiate a new instance of the entity class for each row.
-                populateEntityFromResultSet(instance, type, rs); // Populate the instance with data from the current row in the result set.
-                resultList.add(instance); // Add the populated instance to the result list.
-            }
+        long start = startTimer();
+        try {
+            return queryList(mapperFor(type), Operation.GET_ALL, "", List.of());
         } catch (Exception e) {
             throw new PersistenceException("Error retrieving all entities of type \"" + type.getSimpleName() + "\"", e);
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.GET_ALL, type, start);
+        }
+    }
+
+    /**
+     * Retrieves entities with a primary key greater than the given one, in ascending primary key order.
+     *
+     * @param type    The Class of the entities to retrieve.
+     * @param afterId The primary key after which the page starts.
+     * @param limit   The maximum number of entities to retrieve.
+     * @param <T>     The type parameter of the entities.
+     * @return A List of at most <code>limit</code> entities.
+     */
+    @Override
+    public <T> List<T> getPage(Class<T> type, long afterId, int limit) {
+        checkLimit(limit);
+        long start = startTimer();
+        try {
+            EntityMapper<T> mapper = mapperFor(type);
+            String id = "\"" + mapper.idColumn() + "\"";
+            try {
+                return queryList(mapper, Operation.PAGE, " WHERE " + id + " > ? ORDER BY " + id + " LIMIT ?",
+                        List.of(afterId, limit));
+            } catch (Exception e) {
+                throw new PersistenceException("Error retrieving page of entities of type \"" + type.getSimpleName() + "\"", e);
+            }
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.GET_PAGE, type, start);
+        }
+    }
+
+    /**
+     * Retrieves entities with a primary key lower than the given one, in descending primary key order.
+     *
+     * @param type     The Class of the entities to retrieve.
+     * @param beforeId The primary key before which the page starts.
+     * @param limit    The maximum number of entities to retrieve.
+     * @param <T>      The type parameter of the entities.
+     * @return A List of at most <code>limit</code> entities.
+     */
+    @Override
+    public <T> List<T> getPageDescending(Class<T> type, long beforeId, int limit) {
+        checkLimit(limit);
+        long start = startTimer();
+        try {
+            EntityMapper<T> mapper = mapperFor(type);
+            String id = "\"" + mapper.idColumn() + "\"";
+            try {
+                return queryList(mapper, Operation.PAGE_DESCENDING, " WHERE " + id + " < ? ORDER BY " + id + " DESC LIMIT ?",
+                        List.of(beforeId, limit));
+            } catch (Exception e) {
+                throw new PersistenceException("Error retrieving page of entities of type \"" + type.getSimpleName() + "\"", e);
+            }
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.GET_PAGE, type, start);
+        }
+    }
+
+
+    /**
+     * Retrieves entities selected by a query. The conditions, ordering and limit of the query
+     * are part of the SQL statement, references of the selected entities are loaded in advance
+     * like in {@link #getAll}.
+     *
+     * @param query The query selecting the entities.
+     * @param <T>   The type parameter of the entities.
+     * @return A List of the selected entities.
+     */
+    @Override
+    public <T> List<T> find(Query<T> query) {
+        long start = startTimer();
+        try {
+            EntityMapper<T> mapper = mapperFor(query.type());
+            try {
+                List<Object> parameters = new ArrayList<>();
+                String condition = queryCondition(mapper, query, parameters, true);
+                return queryList(mapper, Operation.QUERY, condition, parameters);
+            } catch (Exception e) {
+                throw new PersistenceException("Error querying entities of type \"" + query.type().getSimpleName() + "\"", e);
+            }
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.FIND, query.type(), start);
+        }
+    }
+
+    /**
+     * Counts entities satisfying the conditions of a query using <code>SELECT COUNT(*)</code>.
+     *
+     * @param query The query whose conditions are counted, its ordering and limit are ignored.
+     * @return The number of matching entities.
+     */
+    @Override
+    public long count(Query<?> query) {
+        long start = startTimer();
+        try {
+            EntityMapper<?> mapper = mapperFor(query.type());
+            List<Object> parameters = new ArrayList<>();
+            String sql = "SELECT COUNT(*) FROM \"" + mapper.tableName() + "\"" + queryCondition(mapper, query, parameters, false);
+            try (StatementCache.Lease lease = statements.acquire(mapper.type(), sql)) {
+                PreparedStatement stmt = lease.statement();
+                for (int i = 0; i < parameters.size(); i++) {
+                    stmt.setObject(i + 1, parameters.get(i));
+                }
+                try (QueryResult result = executeQuery(stmt, sql, mapper.type())) {
+                    result.next();
+                    return result.resultSet().getLong(1);
+                }
+            } catch (SQLException e) {
+                throw new PersistenceException("Error counting entities of type \"" + query.type().getSimpleName() + "\"", e);
+            }
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.COUNT, query.type(), start);
         }
-        return resultList; // Return the list of populated instances.
     }
 
+    /**
+     * Streams all entities of the specified type. The rows are read from an open result set
+     * as the stream is consumed. Referenced entities are loaded for one chunk of rows at a time,
+     * with one query per reference like in {@link #getAll}, when the first row of the chunk is read.
+     * A chunk has as many rows as the fetch size, or {@value #STREAM_CHUNK_SIZE} if it is not set,
+     * so only the references of one chunk are held in memory.
+     * The result set and its statement are released when the stream is closed.
+     *
+     * @param type The Class of the entities to stream.
+     * @param <T>  The type parameter of the entities.
+     * @return A lazily populated Stream of entities of the specified type.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) {
+        long start = startTimer();
+        try {
+            EntityMapper<T> mapper = mapperFor(type);
+            StatementCache.Lease lease = null;
+            try {
+                // Rows are read in the order of their IDs, so the rows of the next chunk can be selected by ID
+                lease = statements.acquire(type, selectSql(mapper) + " ORDER BY \"" + mapper.idColumn() + "\"");
+                lease.statement().setFetchSize(fetchSize);
+                QueryResult result = executeQuery(lease.statement(), lease.sql(), type);
+                StatementCache.Lease leased = lease;
+                int chunkSize = fetchSize > 0 ? fetchSize : STREAM_CHUNK_SIZE;
+                return StreamSupport.stream(new ResultSetSpliterator<>(mapper, result, chunkSize), false)
+                        .onClose(() -> closeResultSet(result, leased));
+            } catch (Exception e) {
+                if (lease != null) {
+                    try {
+                        lease.close();
+                    } catch (SQLException closeFailure) {
+                        e.addSuppressed(closeFailure);
+                    }
+                }
+                throw new PersistenceException("Error streaming entities of type \"" + type.getSimpleName() + "\"", e);
+            }
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.STREAM, type, start);
+        }
+    }
 
     /**
      * Saves an entity to the database. This method will insert a new entity if it does not already exist
-     * or update an existing entity. It also handles saving entities referenced by the current entity to ensure
-     * database integrity.
+     * or update an existing entity. Entities referenced by the current entity must be saved before
+     * to ensure database integrity. Entities tracked by an open {@link Session} are dirty checked,
+     * only their changed columns are updated.
      *
      * @param entity The entity to be saved.
      * @param <T>    The type of the entity.
      */
     @Override
     public <T> void save(T entity) {
+        PersistenceSaveEvent event = new PersistenceSaveEvent();
+        event.begin();
+        long start = startTimer();
+        long entityId = 0;
         try {
-            Class<?> clazz = entity.getClass(); // Get the class of the entity.
-            String tableName = "\"" + clazz.getSimpleName() + "\""; // Format table name to match SQL standards.
-            Long entityId = getEntityId(entity); // Retrieve the entity's ID.
-
-            // Iterate over all fields of the class to check for referenced entities that need to be saved first.
-            for (Field field : clazz.getDeclaredFields()) {
-                field.setAccessible(true); // Make private fields accessible.
-                if (isReferenceField(field)) { // Check if the field is a reference to another entity.
-                    Object referencedEntity = field.get(entity); // Get the referenced entity object.
-                    Long referencedEntityId = getEntityId(referencedEntity); // Get the ID of the referenced entity.
-                    // If the referenced entity does not have a valid ID, throw an exception to ensure referential integrity.
-                    if (referencedEntityId == null || referencedEntityId == 0) {
-                        throw new PersistenceException("Referenced entity must be saved before saving " + clazz.getSimpleName());
-                    }
-                }
-            }
+            EntityMapper<T> mapper = mapperOf(entity);
+            entityId = mapper.getId(entity); // Retrieve the entity's ID.
 
-            if (entityId == null || entityId == 0) { // If the entity does not have an ID, it's considered new and needs to be inserted.
-                entityId = insertEntity(entity, tableName, clazz); // Insert the new entity and retrieve the generated ID.
-                setEntityId(entity, entityId); // Update the entity's ID field with the generated ID.
+            if (entityId == 0) { // If the entity does not have an ID, it's considered new and needs to be inserted.
+                entityId = insertEntity(entity, mapper); // Insert the new entity and retrieve the generated ID.
+                mapper.setId(entity, entityId); // Update the entity's ID field with the generated ID.
+                if (!transactions.isEmpty()) {
+                    transactionInserts.add(entity); // The ID is reset if the transaction is rolled back.
+                }
+                track(mapper, entityId, entity, null);
             } else {
                 // If the entity has an ID, it exists in the database and needs to be updated.
-                updateEntity(entity, tableName, clazz, entityId);
+                Object[] values = updateEntity(entity, mapper, entityId);
+                track(mapper, entityId, entity, values);
             }
         } catch (Exception e) {
             throw new PersistenceException("Error during save operation", e);
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.SAVE, entity.getClass(), start);
+            event.complete(entity.getClass(), entityId, 1);
+        }
+    }
+
+    /**
+     * Saves all entities in one transaction. Entities are grouped by their class and the classes
+     * are ordered so that referenced entity types are written first. Changed entities of a class
+     * are updated by one JDBC batch, new ones are inserted row by row by the cached
+     * <code>INSERT ... RETURNING</code> statement, which returns the ID of every row.
+     * If the operation fails, the transaction is rolled back and the assigned IDs are reset to zero.
+     * If the caller of the connection disabled auto-commit itself, the entities are saved in its
+     * transaction, which is not rolled back, so the IDs are kept.
+     *
+     * @param entities The entities to be saved.
+     * @param <T>      The type of the entities.
+     */
+    @Override
+    public <T> void saveAll(Collection<T> entities) {
+        PersistenceSaveEvent event = new PersistenceSaveEvent();
+        event.begin();
+        long start = startTimer();
+        try {
+            Map<Class<?>, List<Object>> entitiesByType = new LinkedHashMap<>(); // Group entities by their class.
+            for (T entity : entities) {
+                entitiesByType.computeIfAbsent(entity.getClass(), type -> new ArrayList<>()).add(entity);
+            }
+            List<Object> inserted = new ArrayList<>(); // Entities which got an ID assigned.
+            boolean joined = false;
+            try {
+                joined = joinsCallerTransaction();
+                runInTransaction(() -> {
+                    for (Class<?> type : referenceOrder(entitiesByType.keySet())) {
+                        saveBatch(mapperFor(type), entitiesByType.get(type), inserted);
+                    }
+                });
+                if (!transactions.isEmpty()) {
+                    transactionInserts.addAll(inserted); // The IDs are reset if the transaction is rolled back.
+                }
+            } catch (Exception e) {
+                if (!joined) { // Rows inserted in the transaction of the caller still exist.
+                    for (Object entity : inserted) {
+                        EntityMapper<Object> mapper = mapperOf(entity);
+                        if (session != null) {
+                            session.remove(mapper.type(), mapper.getId(entity));
+                        }
+                        mapper.setId(entity, 0); // The inserts were rolled back, the entities are new again.
+                    }
+                }
+                throw new PersistenceException("Error during batch save operation", e);
+            }
+        } finally {
+            if (metrics != null || event.isEnabled()) {
+                Class<?> type = commonType(entities);
+                recordOperation(PersistenceMetrics.Operation.SAVE_ALL, type, start);
+                event.complete(type, 0, entities.size());
+            }
+        }
+    }
+
+    /**
+     * Inserts an entity with an assigned ID, or updates the row with that ID if it exists,
+     * using the cached <code>INSERT ... ON CONFLICT DO UPDATE</code> statement of the entity class.
+     *
+     * @param entity The entity to be saved, its ID must not be zero.
+     * @param <T>    The type of the entity.
+     */
+    @Override
+    public <T> void upsert(T entity) {
+        PersistenceSaveEvent event = new PersistenceSaveEvent();
+        event.begin();
+        long start = startTimer();
+        long entityId = 0;
+        try {
+            EntityMapper<T> mapper = mapperOf(entity);
+            entityId = assignedId(mapper, entity);
+            try (StatementCache.Lease lease = statements.acquire(mapper.type(), Operation.UPSERT, () -> upsertSql(mapper))) {
+                PreparedStatement stmt = lease.statement();
+                mapper.bind(entity, stmt, context);
+                stmt.setLong(mapper.columns().size() + 1, entityId); // The ID follows the columns.
+                executeUpdate(stmt, lease.sql(), mapper.type());
+            }
+            track(mapper, entityId, entity, null);
+        } catch (SQLException e) {
+            throw new PersistenceException("Error during upsert operation", e);
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.UPSERT, entity.getClass(), start);
+            event.complete(entity.getClass(), entityId, 1);
+        }
+    }
+
+    /**
+     * Upserts all entities in one transaction using JDBC batches of the cached upsert statements.
+     * Entities are grouped by their class and the classes are ordered so that referenced entity types
+     * are written first. If the operation fails, the transaction is rolled back.
+     *
+     * @param entities The entities to be saved, their IDs must not be zero.
+     * @param <T>      The type of the entities.
+     */
+    @Override
+    public <T> void upsertAll(Collection<T> entities) {
+        PersistenceSaveEvent event = new PersistenceSaveEvent();
+        event.begin();
+        long start = startTimer();
+        try {
+            Map<Class<?>, List<Object>> entitiesByType = new LinkedHashMap<>(); // Group entities by their class.
+            for (T entity : entities) {
+                entitiesByType.computeIfAbsent(entity.getClass(), type -> new ArrayList<>()).add(entity);
+            }
+            try {
+                runInTransaction(() -> {
+                    for (Class<?> type : referenceOrder(entitiesByType.keySet())) {
+                        upsertBatch(mapperFor(type), entitiesByType.get(type));
+                    }
+                });
+            } catch (SQLException e) {
+                throw new PersistenceException("Error during batch upsert operation", e);
+            }
+        } finally {
+            if (metrics != null || event.isEnabled()) {
+                Class<?> type = commonType(entities);
+                recordOperation(PersistenceMetrics.Operation.UPSERT_ALL, type, start);
+                event.complete(type, 0, entities.size());
+            }
         }
     }
 
@@ -167,373 +490,1372 @@ public class ReflectivePersistenceManager implements PersistenceManager {
      */
     @Override
     public void delete(Object entity) {
-        Class<?> clazz = entity.getClass(); // Obtain the class of the entity to be deleted.
-        String tableName = "\"" + clazz.getSimpleName() + "\""; // Determine the table name based on the entity class name.
+        long start = startTimer();
         try {
-            Field idField = clazz.getDeclaredField("id"); // Assuming 'id' is the name of the primary key field.
-            idField.setAccessible(true); // Make the id field accessible, even if it is private.
-            long id = idField.getLong(entity); // Retrieve the value of the id field from the entity.
+            EntityMapper<Object> mapper = mapperOf(entity);
+            long id = mapper.getId(entity); // Retrieve the value of the id field from the entity.
 
             // Construct a SQL statement to delete the entity from the table based on its id.
-            String sql = "DELETE FROM " + tableName + " WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            try (StatementCache.Lease lease = statements.acquire(mapper.type(), Operation.DELETE,
+                    () -> "DELETE FROM \"" + mapper.tableName() + "\" WHERE \"" + mapper.idColumn() + "\" = ?")) {
+                PreparedStatement stmt = lease.statement();
                 stmt.setLong(1, id); // Set the id in the prepared statement.
-                int affectedRows = stmt.executeUpdate(); // Execute the update and get the number of affected rows.
+                int affectedRows = executeUpdate(stmt, lease.sql(), mapper.type()); // Execute the update and get the number of affected rows.
                 if (affectedRows == 0) {
                     // If no rows were affected, throw an exception indicating the delete operation failed.
                     throw new PersistenceException("Deleting entity failed, no rows affected.");
                 }
+                forget(mapper.type(), id); // Deleted entities are no longer tracked.
+            } catch (SQLException e) {
+                // If executing the SQL statement fails, wrap and throw as a PersistenceException.
+                throw new PersistenceException("Failed to delete entity \"" + mapper.type().getSimpleName() + "\"", e);
             }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            // If accessing the id field fails due to it not existing or being inaccessible, wrap and throw as a PersistenceException.
-            throw new PersistenceException("Failed to access id field on \"" + clazz.getSimpleName() + "\"", e);
-        } catch (SQLException e) {
-            // If executing the SQL statement fails, wrap and throw as a PersistenceException.
-            throw new PersistenceException("Failed to delete entity \"" + clazz.getSimpleName() + "\"", e);
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.DELETE, entity.getClass(), start);
         }
     }
 
-
-
-    // ------------------------------------------------------
-    // helper function
-
-
     /**
-     * Populates an entity's fields from a ResultSet. This includes setting both primitive and reference fields.
-     * Reference fields are loaded by their IDs and fetched recursively.
+     * Deletes entities by their IDs in one transaction. The IDs are deleted in chunks of
+     * {@value #DELETE_CHUNK_SIZE} with <code>DELETE ... WHERE id IN (...)</code>, the last chunk
+     * is padded with repeated IDs, so all chunks use the same cached statement.
      *
-     * @param instance The instance of the entity to populate.
-     * @param type     The Class of the entity.
-     * @param rs       The ResultSet containing the database query results.
-     * @param <T>      The type parameter of the entity.
-     * @throws IllegalAccessException when illegal access to a field occurs.
-     * @throws SQLException           when a database access error occurs.
+     * @param type The Class of the entities to delete.
+     * @param ids  The IDs of the entities, IDs without a row are ignored.
+     * @param <T>  The type parameter of the entities.
+     * @return The number of deleted rows.
      */
-    // get getAll
-    private <T> void populateEntityFromResultSet(T instance, Class<T> type, ResultSet rs) throws IllegalAccessException, SQLException {
-        for (Field field : type.getDeclaredFields()) { // Loop through each field of the entity class.
-            field.setAccessible(true); // Make the field accessible, even if it is private.
-            if (!field.getType().isPrimitive() && !field.getType().equals(String.class) && !Collection.class.isAssignableFrom(field.getType())) {
-                long relatedEntityId = rs.getLong(field.getName()); // Get the ID of the related entity from the ResultSet.
-                if (relatedEntityId > 0) {
-                    Optional<?> relatedEntity = get(field.getType(), relatedEntityId); // Recursively fetch the related entity.
-                    relatedEntity.ifPresent(value -> {
-                        try {
-                            field.set(instance, value); // Set the related entity instance to the field.
-                        } catch (IllegalAccessException e) {
-                            throw new PersistenceException(e.getMessage(), e);
+    @Override
+    public <T> long deleteAll(Class<T> type, long... ids) {
+        long start = startTimer();
+        try {
+            if (ids.length == 0) {
+                return 0;
+            }
+            EntityMapper<T> mapper = mapperFor(type);
+            long[] deleted = {0};
+            try {
+                runInTransaction(() -> {
+                    try (StatementCache.Lease lease = statements.acquire(type, Operation.DELETE_ALL,
+                            () -> "DELETE FROM \"" + mapper.tableName() + "\" WHERE \"" + mapper.idColumn() + "\" IN ("
+                                    + String.join(", ", Collections.nCopies(DELETE_CHUNK_SIZE, "?")) + ")")) {
+                        PreparedStatement stmt = lease.statement();
+                        for (int from = 0; from < ids.length; from += DELETE_CHUNK_SIZE) {
+                            for (int i = 0; i < DELETE_CHUNK_SIZE; i++) {
+                                stmt.setLong(i + 1, ids[Math.min(from + i, ids.length - 1)]);
+                            }
+                            deleted[0] += executeUpdate(stmt, lease.sql(), type);
                         }
-                    });
-                }
-            } else {
-                // For primitive, String, and Collection fields...
-                Object value = rs.getObject(field.getName()); // Get the value directly from the ResultSet.
-                if (value != null) {
-                    field.set(instance, value); // Set the value to the field.
-                }
+                    }
+                });
+            } catch (SQLException e) {
+                throw new PersistenceException("Failed to delete entities \"" + type.getSimpleName() + "\"", e);
             }
+            for (long id : ids) {
+                forget(type, id);
+            }
+            return deleted[0];
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.DELETE_ALL, type, start);
         }
     }
 
-
-
-
-
     /**
-     * Maps Java types to SQL types for use in table creation. This simplifies the creation of table
-     * definitions based on the fields of entity classes.
+     * Deletes entities satisfying the conditions of a query in one transaction, without loading them.
+     * The IDs of the deleted rows are returned by the <code>DELETE</code> statement, so the deleted
+     * entities are evicted from the session and the second-level cache. A query with an ordering
+     * or a limit deletes the rows selected by a subquery with the same ordering and limit.
      *
-     * @param type The Java Class type to map to SQL.
-     * @return A String representing the SQL type equivalent of the Java type.
+     * @param query The query selecting the entities to delete.
+     * @return The number of deleted rows.
      */
-    // createTables
-    private String javaTypeToSQLType(Class<?> type) {
-        if (int.class.equals(type) || long.class.equals(type)) {
-            return "INTEGER"; // Map Java int and long types to SQL INTEGER type.
-        } else if (double.class.equals(type) || float.class.equals(type)) {
-            return "REAL"; // Map Java double and float types to SQL REAL type.
-        } else if (String.class.equals(type)) {
-            return "TEXT"; // Map Java String type to SQL TEXT type.
+    @Override
+    public long deleteWhere(Query<?> query) {
+        long start = startTimer();
+        try {
+            EntityMapper<?> mapper = mapperFor(query.type());
+            List<Object> parameters = new ArrayList<>();
+            String table = "\"" + mapper.tableName() + "\"";
+            String id = "\"" + mapper.idColumn() + "\"";
+            String sql = query.ordering().isEmpty() && query.limit() < 0
+                    ? "DELETE FROM " + table + queryCondition(mapper, query, parameters, false)
+                    : "DELETE FROM " + table + " WHERE " + id + " IN (SELECT " + id + " FROM " + table
+                    + queryCondition(mapper, query, parameters, true) + ")";
+            List<Long> deleted = new ArrayList<>();
+            try {
+                runInTransaction(() -> {
+                    try (StatementCache.Lease lease = statements.acquire(mapper.type(), sql + " RETURNING " + id)) {
+                        PreparedStatement stmt = lease.statement();
+                        for (int i = 0; i < parameters.size(); i++) {
+                            stmt.setObject(i + 1, parameters.get(i));
+                        }
+                        try (QueryResult result = executeQuery(stmt, lease.sql(), mapper.type())) {
+                            while (result.next()) {
+                                deleted.add(result.resultSet().getLong(1));
+                            }
+                        }
+                    }
+                });
+            } catch (SQLException e) {
+                throw new PersistenceException("Failed to delete entities \"" + query.type().getSimpleName() + "\"", e);
+            }
+            if (metrics != null) {
+                metrics.recordRowsWritten(mapper.type(), deleted.size());
+            }
+            for (long deletedId : deleted) {
+                forget(mapper.type(), deletedId);
+            }
+            return deleted.size();
+        } finally {
+            recordOperation(PersistenceMetrics.Operation.DELETE_WHERE, query.type(), start);
         }
-        // Default to TEXT for types not explicitly handled.
-        return "TEXT";
     }
 
-
     /**
-     * Inserts a new entity into the database. It constructs an INSERT SQL statement based on the entity's fields,
-     * excluding the ID, and executes it, returning the generated key if available.
-     *
-     * @param entity    The entity to insert.
-     * @param tableName The name of the table where the entity is to be inserted.
-     * @param clazz     The Class of the entity.
-     * @param <T>       The type parameter of the entity.
-     * @return The generated ID of the inserted entity, if available.
-     * @throws IllegalAccessException when illegal access to a field occurs.
-     * @throws SQLException           when a database access error occurs.
+     * Begins a transaction by disabling auto-commit of the connection,
+     * or sets a savepoint if a transaction is already active.
      */
-    // save
-    private <T> Long insertEntity(T entity, String tableName, Class<?> clazz) throws IllegalAccessException, SQLException {
-        List<Object> values = new ArrayList<>(); // List to hold the values to be inserted.
-        StringBuilder sql = new StringBuilder("INSERT INTO " + tableName + " (");
-        StringBuilder placeholders = new StringBuilder(); // For use in the prepared statement.
-
-        Field[] fields = clazz.getDeclaredFields();
-        boolean first = true; // Flag to help format the SQL statement correctly.
-        for (Field field : fields) {
-            field.setAccessible(true); // Make the field accessible, even if it is private.
-            if (!"id".equals(field.getName())) { // Exclude the 'id' field as it's typically auto-generated by the database.
-                if (!first) {
-                    sql.append(", ");
-                    placeholders.append(", ");
-                } else {
-                    first = false; // Update flag after the first field is processed.
-                }
-                sql.append("\"").append(field.getName()).append("\""); // Append field name to SQL statement.
-                placeholders.append("?"); // Use placeholders for values to be bound later.
-                Object value = field.get(entity); // Retrieve the field value from the entity.
-                if (isReferenceField(field) && value != null) {
-                    // If the field is a reference to another entity, retrieve the ID of the referenced entity.
-                    value = getEntityId(value);
-                }
-                values.add(value); // Add the value (or referenced entity ID) to the values list.
+    @Override
+    public void begin() {
+        try {
+            if (transactions.isEmpty()) {
+                restoreAutoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                transactions.push(new TransactionLevel(null, 0));
+            } else {
+                transactions.push(new TransactionLevel(connection.setSavepoint(), transactionInserts.size()));
             }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to begin transaction", e);
         }
-
-        sql.append(") VALUES (").append(placeholders).append(")"); // Complete the SQL statement.
-
-        return executeInsert(sql.toString(), values.toArray()); // Execute the insert operation and return the generated ID.
     }
 
     /**
-     * Updates an existing entity in the database. It constructs an UPDATE SQL statement based on the entity's fields
-     * and executes it.
-     *
-     * @param entity    The entity to update.
-     * @param tableName The name of the table where the entity exists.
-     * @param clazz     The Class of the entity.
-     * @param entityId  The ID of the entity to update.
-     * @throws IllegalAccessException when illegal access to a field occurs.
-     * @throws SQLException           when a database access error occurs.
+     * Commits the outermost transaction or releases the savepoint of a nested one.
      */
-    // save
-    private void updateEntity(Object entity, String tableName, Class<?> clazz, Long entityId) throws IllegalAccessException, SQLException {
-        List<Object> values = new ArrayList<>(); // Prepare a list to hold the values to be updated.
-        StringBuilder sql = new StringBuilder("UPDATE " + tableName + " SET "); // Start building the UPDATE SQL statement.
-
-        Field[] fields = clazz.getDeclaredFields();
-        boolean first = true; // Flag to ensure correct comma placement in the SQL statement.
-        for (Field field : fields) {
-            field.setAccessible(true); // Make the field accessible, even if it is private.
-            if (!"id".equals(field.getName())) { // Skip the 'id' field as it's used in the WHERE clause, not SET.
-                if (!first) {
-                    sql.append(", "); // Append comma before adding the next field-value pair, except for the first pair.
-                } else {
-                    first = false; // After handling the first field-value pair, change the flag.
-                }
-                sql.append("\"").append(field.getName()).append("\" = ?"); // Add the field name and placeholder to the SQL statement.
-                Object value = field.get(entity); // Retrieve the field value from the entity.
-                if (isReferenceField(field) && value != null) {
-                    // If the field is a reference to another entity, retrieve the ID of the referenced entity as the value.
-                    value = getEntityId(value);
-                }
-                values.add(value); // Add the field value (or referenced entity ID) to the values list.
+    @Override
+    public void commit() {
+        TransactionLevel level = currentTransaction();
+        try {
+            if (level.savepoint() == null) {
+                connection.commit();
+                connection.setAutoCommit(restoreAutoCommit);
+                transactionInserts.clear();
+                evictCommitted();
+            } else {
+                connection.releaseSavepoint(level.savepoint());
             }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to commit transaction", e);
         }
-
-        sql.append(" WHERE id = ?"); // Complete the SQL statement with the WHERE clause to target the specific entity.
-        values.add(entityId); // Add the entity ID as the last value to bind, for the WHERE clause.
-
-        executeUpdate(sql.toString(), values.toArray()); // Execute the update operation with the built SQL statement and values.
+        transactions.pop();
     }
 
     /**
-     * Executes an SQL INSERT statement to store a new entity in the database and returns the generated key.
-     *
-     * @param sql    The SQL INSERT statement to execute.
-     * @param values The values to be bound to the INSERT statement's placeholders.
-     * @return The generated key for the newly inserted entity, typically an ID.
-     * @throws SQLException If executing the INSERT statement fails.
+     * Rolls back the outermost transaction or the changes made since the savepoint of a nested one.
+     * Entities inserted since then get their ID reset to 0.
      */
-    // insertEntity
-    private Long executeInsert(String sql, Object[] values) throws SQLException {
-        try (PreparedStatement stmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            for (int i = 0; i < values.length; i++) {
-                stmt.setObject(i + 1, values[i]); // Bind each value to its corresponding placeholder in the INSERT statement.
-            }
-            int affectedRows = stmt.executeUpdate(); // Execute the INSERT operation.
-            if (affectedRows == 0) {
-                throw new SQLException("Creating entity failed, no rows affected."); // Check if the INSERT operation affected any rows.
+    @Override
+    public void rollback() {
+        TransactionLevel level = currentTransaction();
+        transactions.pop();
+        try {
+            if (level.savepoint() == null) {
+                try {
+                    connection.rollback();
+                } finally {
+                    connection.setAutoCommit(restoreAutoCommit);
+                    transactionEvictions.clear(); // The cached committed state is still current.
+                }
+            } else {
+                connection.rollback(level.savepoint());
+                connection.releaseSavepoint(level.savepoint());
             }
-            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    return generatedKeys.getLong(1); // Retrieve and return the generated key (ID) for the inserted entity.
-                } else {
-                    throw new SQLException("Creating entity failed, no ID obtained."); // Handle case where no generated key was obtained.
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to roll back transaction", e);
+        } finally {
+            List<Object> rolledBack = transactionInserts.subList(level.insertMark(), transactionInserts.size());
+            for (Object entity : rolledBack) {
+                EntityMapper<Object> mapper = mapperOf(entity);
+                if (session != null) {
+                    session.remove(mapper.type(), mapper.getId(entity));
                 }
+                mapper.setId(entity, 0); // The insert was rolled back, the entity is new again.
+            }
+            rolledBack.clear();
+            if (session != null) {
+                session.forgetSnapshots(); // Updated entities are updated fully when they are saved again.
             }
         }
     }
 
     /**
-     * Sets the ID field of an entity to a specified value. This method is used after inserting a new entity
-     * to update the entity's ID field with the generated key.
-     *
-     * @param entity The entity whose ID field is to be set.
-     * @param id     The value to set the ID field to.
-     * @throws NoSuchFieldException   If the entity class does not have an 'id' field.
-     * @throws IllegalAccessException If the 'id' field is inaccessible.
+     * @return true if a transaction started by {@link #begin()} is active
      */
-    // save
-    private void setEntityId(Object entity, long id) throws NoSuchFieldException, IllegalAccessException {
-        Field idField = entity.getClass().getDeclaredField("id"); // Locate the 'id' field in the entity class.
-        idField.setAccessible(true); // Ensure the field is accessible, even if it's private.
-        idField.set(entity, id); // Set the 'id' field of the entity to the specified value (the generated key).
+    public boolean isTransactionActive() {
+        return !transactions.isEmpty();
     }
 
+    /**
+     * Closes all cached prepared statements. The connection stays open.
+     */
+    @Override
+    public void close() {
+        statements.close();
+    }
 
     /**
-     * Retrieves the value of the 'id' field of an entity. This method is used to obtain the entity's ID
-     * for database operations that require an entity's ID, such as updates or deletes.
+     * Open a session tracking loaded and saved entities in an identity map.
+     * Until the session is closed, {@link #get}, {@link #getAll} and reference loading
+     * return the tracked instance for rows which were already loaded, without querying them again.
      *
-     * @param entity The entity whose ID is to be retrieved.
-     * @return The value of the entity's ID field.
-     * @throws PersistenceException If the entity class does not have an 'id' field or if access to the field is denied.
+     * @return the open session, closing it ends the session
+     * @throws PersistenceException if a session is already open
      */
-    // save updateEntity insertEntity
-    private Long getEntityId(Object entity) {
-        try {
-            Field idField = entity.getClass().getDeclaredField("id"); // Attempt to locate the 'id' field in the entity class.
-            idField.setAccessible(true); // Make sure the field is accessible, regardless of its access modifier.
-            return (Long) idField.get(entity); // Retrieve and return the value of the 'id' field.
-        } catch (NoSuchFieldException e) {
-            // If no 'id' field exists in the entity class, throw a PersistenceException.
-            throw new PersistenceException("Entity class " + entity.getClass().getSimpleName() + " does not have an 'id' field.", e);
-        } catch (IllegalAccessException e) {
-            // If the 'id' field is inaccessible, throw a PersistenceException.
-            throw new PersistenceException("Access to 'id' field in entity class " + entity.getClass().getSimpleName() + " was denied.", e);
+    public Session openSession() {
+        if (session != null) {
+            throw new PersistenceException("A session is already open");
         }
+        // Closing a session again must not end a session opened after it
+        Session opened = new Session(closed -> {
+            if (session == closed) {
+                session = null;
+            }
+        });
+        session = opened;
+        return opened;
     }
 
+    /**
+     * @return the open session or an empty Optional if entities are not tracked
+     */
+    public Optional<Session> currentSession() {
+        return Optional.ofNullable(session);
+    }
 
     /**
-     * Determines whether a given field is a reference to another entity. This is used to handle foreign keys
-     * in relational database operations.
+     * Set the number of rows fetched from the database at once by {@link #stream}.
      *
-     * @param field The field to check.
-     * @return true if the field is considered a reference to another entity; false otherwise.
+     * @param fetchSize number of rows, 0 uses the default of the driver
      */
-    // save updateEntity insertEntity
-    private boolean isReferenceField(Field field) {
-        // Assuming non-primitive and non-String fields are references to other entities.
-        return !field.getType().isPrimitive() && !field.getType().equals(String.class);
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size must not be negative");
+        }
+        this.fetchSize = fetchSize;
     }
 
     /**
-     * Executes an SQL UPDATE statement to modify an existing entity in the database.
+     * Set the second-level cache consulted by {@link #get} before querying the database.
+     * The cache may be shared by several managers, entities saved or deleted by this manager
+     * are evicted from it, and evicted again when the transaction writing them commits,
+     * since other connections may have cached the previous committed state meanwhile.
+     * Transactions managed directly on the connection are not tracked, so their
+     * writes are evicted only once.
      *
-     * @param sql    The SQL UPDATE statement to execute.
-     * @param values The values to be bound to the UPDATE statement's placeholders.
-     * @throws SQLException If executing the UPDATE statement fails.
+     * @param entityCache the cache or <code>null</code> to disable caching
      */
-    // updateEntity
-    private void executeUpdate(String sql, Object[] values) throws SQLException {
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) { // Prepare the UPDATE statement with the given SQL.
-            for (int i = 0; i < values.length; i++) {
-                stmt.setObject(i + 1, values[i]); // Bind each value to its corresponding placeholder in the statement.
-            }
-            stmt.executeUpdate(); // Execute the UPDATE operation.
-        }
+    public void setEntityCache(EntityCache entityCache) {
+        this.entityCache = entityCache;
     }
 
     /**
-     * Executes a general SQL statement, typically used for table creation.
+     * @return the second-level cache or an empty Optional if no cache is used
+     */
+    public Optional<EntityCache> getEntityCache() {
+        return Optional.ofNullable(entityCache);
+    }
+
+    /**
+     * Set the metrics recording the operations of this manager. Without metrics,
+     * the manager does not measure anything.
      *
-     * @param sql The SQL statement to execute.
-     * @throws PersistenceException If executing the SQL statement fails.
+     * @param metrics the metrics or <code>null</code> to disable recording
      */
+    public void setMetrics(PersistenceMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-    // createTables
-    private void executeSQL(String sql) {
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute(sql); // Execute the given SQL statement, which is typically used for DDL commands like creating tables.
-        } catch (SQLException e) {
-            // If any SQLException occurs during the execution, wrap it in a custom PersistenceException.
-            throw new PersistenceException("Error executing SQL: " + sql, e);
-        }
+    /**
+     * @return the metrics recording the operations of this manager, if set
+     */
+    public Optional<PersistenceMetrics> getMetrics() {
+        return Optional.ofNullable(metrics);
     }
 
     /**
-     * Generates SQL field definitions for creating tables based on entity class fields.
+     * Set the log of statements taking longer than its threshold. While the log is set,
+     * statements remember their bound parameters, so the log can show them.
      *
-     * @param cls The entity class to generate field definitions for.
-     * @return A list of SQL field definitions.
+     * @param slowQueryLog the log or <code>null</code> to disable logging
      */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+        statements.setRecordParameters(slowQueryLog != null);
+    }
 
-    // createTables
-    private List<String> getFieldDefinitions(Class<?> cls) {
-        List<String> fieldDefs = new ArrayList<>(); // Initialize a list to hold the field definitions.
-        for (Field field : cls.getDeclaredFields()) { // Iterate over each field declared in the entity class.
-            boolean isReference = !field.getType().isPrimitive() && !field.getType().equals(String.class) && !Collection.class.isAssignableFrom(field.getType());
-            // Determine if the field is a reference to another entity
-            String fieldType = isReference ? "INTEGER" : javaTypeToSQLType(field.getType());
-            // Map the Java type to an SQL type. References are typically represented as INTEGER foreign keys.
+    /**
+     * @return the log of slow statements, if set
+     */
+    public Optional<SlowQueryLog> getSlowQueryLog() {
+        return Optional.ofNullable(slowQueryLog);
+    }
+
+    // PooledPersistenceManager SchemaMigrator
+    Connection connection() {
+        return connection;
+    }
 
-            String fieldDef = "\"" + field.getName() + "\" " + fieldType; // Create the field definition string.
-            if ("id".equals(field.getName())) {
-                fieldDef += " PRIMARY KEY AUTOINCREMENT"; // If the field is 'id', add PRIMARY KEY AUTOINCREMENT.
+    /**
+     * Get definitions of the tables of the given entity classes.
+     *
+     * @param types entity classes, all entities of the {@link SchemaCatalog} if empty
+     * @return table definitions in the order of the classes or of the catalog
+     * @throws PersistenceException If no classes are given and no schema catalog is found.
+     */
+    // createTables SchemaMigrator
+    List<SchemaCatalog.TableDefinition> tableDefinitions(Class<?>... types) {
+        List<SchemaCatalog.TableDefinition> tables = new ArrayList<>();
+        if (types.length == 0) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            tables.addAll(SchemaCatalog.findTables(classLoader != null ? classLoader : getClass().getClassLoader()));
+            if (tables.isEmpty()) {
+                throw new PersistenceException("No schema catalog found, no entity was processed by the annotation processor");
             }
-            fieldDefs.add(fieldDef); // Add the field definition to the list.
         }
-        return fieldDefs; // Return the list of field definitions.
+        for (Class<?> cls : types) {
+            EntityMapper<?> mapper = mapperFor(cls);
+            tables.add(new SchemaCatalog.TableDefinition(cls, mapper.tableName(),
+                    mapper.createTableSql(), mapper.createIndexSql()));
+        }
+        return tables;
     }
 
     /**
-     * Generates SQL foreign key constraints for creating tables, based on entity class fields that reference other entities.
+     * Set the manager loading lazy {@link Ref} references read by this manager. A pool sets itself,
+     * so that references accessed after the manager was returned to the pool do not use it.
      *
-     * @param cls The entity class to generate foreign key constraints for.
-     * @return A list of SQL foreign key constraints.
+     * @param referenceLoader manager loading the referenced entities
      */
+    void setReferenceLoader(PersistenceManager referenceLoader) {
+        this.referenceLoader = referenceLoader;
+    }
 
-    // createTables
-    private List<String> getForeignKeyConstraints(Class<?> cls) {
-        List<String> foreignKeys = new ArrayList<>(); // Initialize a list to hold foreign key constraints.
-        for (Field field : cls.getDeclaredFields()) { // Iterate over each declared field in the class.
-            if (!field.getType().isPrimitive() && !field.getType().equals(String.class) && !Collection.class.isAssignableFrom(field.getType())) {
-                // Check if the field is a reference to another entity (excluding primitives, Strings, and Collections).
-                String fkConstraint = "FOREIGN KEY (\"" + field.getName() + "\") REFERENCES " + field.getType().getSimpleName() + "(id)";
-                // Construct the foreign key constraint SQL string.
-                foreignKeys.add(fkConstraint); // Add the constructed constraint to the list.
-            }
-        }
-        return foreignKeys; // Return the list of foreign key constraints.
+    /**
+     * @return cache of prepared statements of this manager, e.g. to read its hit and miss counts
+     */
+    public StatementCache statementCache() {
+        return statements;
     }
 
     /**
-     * Builds the SQL statement for creating a table based on entity class fields and foreign key constraints.
+     * Get the mapper used to convert entities of the given type to table rows and back.
+     * Subclasses may provide faster mappers, this implementation uses reflective metadata
+     * computed once per entity class.
      *
-     * @param tableName        The name of the table to create.
-     * @param fieldDefinitions A list of field definitions for the table.
-     * @param foreignKeys      A list of foreign key constraints for the table.
-     * @return The SQL statement for creating the table.
+     * @param type entity class
+     * @param <T>  the entity type
+     * @return mapper for the entity class
      */
+    protected <T> EntityMapper<T> mapperFor(Class<T> type) {
+        return EntityMetadata.of(type);
+    }
 
-    // createTables
-    private String buildCreateTableSQL(String tableName, List<String> fieldDefinitions, List<String> foreignKeys) {
-        String fieldDefsString = String.join(", ", fieldDefinitions); // Combine all field definitions into a single string.
-        String foreignKeysString = String.join(", ", foreignKeys); // Combine all foreign key constraints into a single string.
 
-        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS "); // Start building the CREATE TABLE SQL statement.
-        sql.append("\"").append(tableName).append("\"").append(" ("); // Append the table name.
-        sql.append(fieldDefsString); // Append the field definitions.
 
-        if (!foreignKeys.isEmpty()) {
-            sql.append(", ").append(foreignKeysString); // If there are foreign key constraints, append them to the statement.
+    // ------------------------------------------------------
+    // helper function
+
+
+    // save delete
+    @SuppressWarnings("unchecked")
+    private <T> EntityMapper<T> mapperOf(T entity) {
+        return mapperFor((Class<T>) entity.getClass());
+    }
+
+    /**
+     * Inserts and updates entities of one type. Updates use a batch of the cached UPDATE statement.
+     * Inserts run the cached INSERT statement row by row, each returning its generated ID, because the
+     * rowids of one batch need not be contiguous, e.g. when a trigger inserts into the same table.
+     *
+     * @param mapper   The mapper of the entities.
+     * @param entities The entities to save.
+     * @param inserted Collects inserted entities whose ID was assigned.
+     * @param <T>      The type parameter of the entities.
+     * @throws SQLException when a database access error occurs.
+     */
+    // saveAll
+    private <T> void saveBatch(EntityMapper<T> mapper, List<?> entities, List<Object> inserted) throws SQLException {
+        List<T> inserts = new ArrayList<>();
+        List<T> updates = new ArrayList<>();
+        for (Object entity : entities) {
+            T typed = mapper.type().cast(entity);
+            if (mapper.getId(typed) == 0) {
+                inserts.add(typed);
+            } else if (isUnchanged(mapper, typed)) {
+                if (metrics != null) {
+                    metrics.recordSkippedUpdate(mapper.type());
+                }
+            } else {
+                updates.add(typed);
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            try (StatementCache.Lease lease = statements.acquire(mapper.type(), Operation.UPDATE, () -> updateSql(mapper))) {
+                PreparedStatement stmt = lease.statement();
+                try {
+                    for (T entity : updates) {
+                        mapper.bind(entity, stmt, context);
+                        stmt.setLong(mapper.columns().size() + 1, mapper.getId(entity));
+                        stmt.addBatch();
+                    }
+                    executeBatch(stmt, lease.sql(), mapper.type());
+                } finally {
+                    stmt.clearBatch(); // Do not leave a partial batch in the cached statement.
+                }
+            }
+            for (T entity : updates) {
+                track(mapper, mapper.getId(entity), entity, null);
+            }
+        }
+
+        if (!inserts.isEmpty()) {
+            try (StatementCache.Lease lease = statements.acquire(mapper.type(),
+                    insertSql(mapper) + " RETURNING \"" + mapper.idColumn() + "\"")) {
+                PreparedStatement stmt = lease.statement();
+                for (T entity : inserts) {
+                    mapper.bind(entity, stmt, context);
+                    long id;
+                    try (QueryResult result = executeQuery(stmt, lease.sql(), mapper.type())) {
+                        if (!result.next()) {
+                            throw new SQLException("Creating entity failed, no ID obtained.");
+                        }
+                        id = result.resultSet().getLong(1);
+                    }
+                    mapper.setId(entity, id);
+                    inserted.add(entity);
+                    track(mapper, id, entity, null);
+                }
+            }
+            if (metrics != null) {
+                metrics.recordRowsWritten(mapper.type(), inserts.size());
+            }
+        }
+    }
+
+    /**
+     * Upserts entities of one type using a batch of the cached upsert statement.
+     *
+     * @param mapper   The mapper of the entities.
+     * @param entities The entities to save.
+     * @param <T>      The type parameter of the entities.
+     * @throws SQLException when a database access error occurs.
+     */
+    // upsertAll
+    private <T> void upsertBatch(EntityMapper<T> mapper, List<?> entities) throws SQLException {
+        try (StatementCache.Lease lease = statements.acquire(mapper.type(), Operation.UPSERT, () -> upsertSql(mapper))) {
+            PreparedStatement stmt = lease.statement();
+            try {
+                for (Object entity : entities) {
+                    T typed = mapper.type().cast(entity);
+                    mapper.bind(typed, stmt, context);
+                    stmt.setLong(mapper.columns().size() + 1, assignedId(mapper, typed));
+                    stmt.addBatch();
+                }
+                executeBatch(stmt, lease.sql(), mapper.type());
+            } finally {
+                stmt.clearBatch(); // Do not leave a partial batch in the cached statement.
+            }
+        }
+        for (Object entity : entities) {
+            T typed = mapper.type().cast(entity);
+            track(mapper, mapper.getId(typed), typed, null);
+        }
+    }
+
+    // upsert upsertBatch
+    private <T> long assignedId(EntityMapper<T> mapper, T entity) {
+        long id = mapper.getId(entity);
+        if (id == 0) {
+            throw new PersistenceException("Upserted entity \"" + mapper.type().getSimpleName() + "\" has no assigned ID");
+        }
+        return id;
+    }
+
+    /**
+     * Orders entity classes so that every class comes after the classes it references.
+     * Classes referencing each other in a cycle keep their original order.
+     *
+     * @param types The entity classes to order.
+     * @return The classes in the order in which they can be saved.
+     */
+    // saveAll upsertAll
+    private List<Class<?>> referenceOrder(Set<Class<?>> types) {
+        Set<Class<?>> ordered = new LinkedHashSet<>();
+        Set<Class<?>> visiting = new LinkedHashSet<>();
+        for (Class<?> type : types) {
+            visitReferences(type, types, visiting, ordered);
+        }
+        return new ArrayList<>(ordered);
+    }
+
+    // referenceOrder
+    private void visitReferences(Class<?> type, Set<Class<?>> types, Set<Class<?>> visiting, Set<Class<?>> ordered) {
+        if (ordered.contains(type) || !visiting.add(type)) {
+            return;
+        }
+        for (Class<?> referenced : mapperFor(type).references().values()) {
+            if (types.contains(referenced)) {
+                visitReferences(referenced, types, visiting, ordered);
+            }
+        }
+        ordered.add(type);
+    }
+
+    /**
+     * Runs the work in a transaction, which is committed, or rolled back on failure. Within a transaction
+     * started by {@link #begin()} the work runs in a savepoint. If the caller of the connection disabled
+     * auto-commit itself, the work joins the transaction of the caller.
+     *
+     * @param work The database work to run.
+     * @throws SQLException when a database access error occurs.
+     */
+    // saveAll upsertAll deleteAll deleteWhere
+    private void runInTransaction(SqlWork work) throws SQLException {
+        if (joinsCallerTransaction()) {
+            work.run(); // The transaction is managed by the caller of the connection.
+            return;
+        }
+        begin(); // Within a transaction of the manager this is a savepoint.
+        try {
+            work.run();
+        } catch (SQLException | RuntimeException e) {
+            rollback();
+            throw e;
+        }
+        commit();
+    }
+
+    // getPage getPageDescending, SQLite reads all rows for a negative LIMIT
+    private static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page limit must be positive");
+        }
+    }
+
+    // saveAll runInTransaction
+    private boolean joinsCallerTransaction() throws SQLException {
+        return transactions.isEmpty() && !connection.getAutoCommit();
+    }
+
+    // commit rollback
+    private TransactionLevel currentTransaction() {
+        TransactionLevel level = transactions.peek();
+        if (level == null) {
+            throw new PersistenceException("No transaction is active");
+        }
+        return level;
+    }
+
+    /**
+     * Reads entities selected by a cached query. Entities they reference are loaded in advance.
+     *
+     * @param mapper     The mapper of the entities.
+     * @param operation  The operation under which the query is cached, queries are cached by their SQL.
+     * @param condition  The part of the query following the table name, e.g. WHERE and ORDER BY clauses.
+     * @param parameters The values of the parameters of the condition.
+     * @param <T>        The type parameter of the entities.
+     * @return A List of the selected entities.
+     * @throws SQLException when a database access error occurs.
+     */
+    // getAll getPage getPageDescending find
+    private <T> List<T> queryList(EntityMapper<T> mapper, Operation operation, String condition,
+                                  List<Object> parameters) throws SQLException {
+        List<T> resultList = new ArrayList<>(); // Initialize a list to hold the result entities.
+        EntityMapper.Context rowContext = prefetchReferences(mapper,
+                new RowSource("SELECT * FROM \"" + mapper.tableName() + "\"" + condition, parameters));
+        try (StatementCache.Lease lease = operation == Operation.QUERY
+                ? statements.acquire(mapper.type(), selectSql(mapper) + condition)
+                : statements.acquire(mapper.type(), operation, () -> selectSql(mapper) + condition)) {
+            PreparedStatement stmt = lease.statement();
+            for (int i = 0; i < parameters.size(); i++) {
+                stmt.setObject(i + 1, parameters.get(i));
+            }
+            try (QueryResult result = executeQuery(stmt, lease.sql(), mapper.type())) { // Execute the query and get the result set.
+                while (result.next()) {
+                    resultList.add(readRow(mapper, result.resultSet(), rowContext)); // Add the entity populated from the current row.
+                }
+            }
+        }
+        return resultList; // Return the list of populated instances.
+    }
+
+    /**
+     * Builds the part of a query statement following the table name, adding the values
+     * of its placeholders to the parameters.
+     *
+     * @param mapper     The mapper of the queried entities.
+     * @param query      The query.
+     * @param parameters Collects the values of the placeholders.
+     * @param ordered    Whether the ORDER BY and LIMIT clauses are included.
+     * @return The WHERE, ORDER BY and LIMIT clauses.
+     * @throws PersistenceException if the query refers to an unknown column.
+     */
+    // find count deleteWhere
+    private String queryCondition(EntityMapper<?> mapper, Query<?> query, List<Object> parameters, boolean ordered) {
+        StringBuilder sql = new StringBuilder();
+        String keyword = " WHERE ";
+        for (Query.Condition condition : query.conditions()) {
+            sql.append(keyword).append(queryColumn(mapper, condition.column()));
+            Query.Operator operator = condition.operator();
+            Object value = condition.value();
+            if (value == null) {
+                // Comparing with NULL is never true in SQL, equality is tested with IS NULL
+                if (operator != Query.Operator.EQ && operator != Query.Operator.NE) {
+                    throw new PersistenceException("Column \"" + condition.column() + "\" cannot be compared with null using " + operator);
+                }
+                sql.append(operator == Query.Operator.EQ ? " IS NULL" : " IS NOT NULL");
+            } else {
+                sql.append(" ").append(operator.sql()).append(" ?");
+                boolean reference = mapper.references().containsKey(condition.column()) && !(value instanceof Number);
+                parameters.add(reference ? context.idOf(value) : value); // References are compared by their ID.
+            }
+            keyword = " AND ";
+        }
+        if (ordered) {
+            keyword = " ORDER BY ";
+            for (Query.Order order : query.ordering()) {
+                sql.append(keyword).append(queryColumn(mapper, order.column())).append(order.descending() ? " DESC" : "");
+                keyword = ", ";
+            }
+            if (query.limit() >= 0) {
+                sql.append(" LIMIT ?");
+                parameters.add(query.limit());
+            }
+        }
+        return sql.toString();
+    }
+
+    // queryCondition
+    private String queryColumn(EntityMapper<?> mapper, String column) {
+        if (!column.equals(mapper.idColumn()) && !mapper.columns().contains(column)) {
+            throw new PersistenceException("Entity \"" + mapper.type().getSimpleName() + "\" does not have column \"" + column + "\"");
+        }
+        return "\"" + column + "\"";
+    }
+
+    /**
+     * Loads all entities referenced by the given rows, so that reading the rows does not query
+     * referenced entities one by one. Every reference is loaded with a single query selecting
+     * the referenced rows by the foreign keys of the given rows. References of the referenced
+     * entities are loaded the same way, except for reference cycles, which are loaded on demand.
+     *
+     * @param mapper The mapper of the rows.
+     * @param rows   Query returning the rows whose references are loaded.
+     * @return Context serving the loaded entities, falling back to {@link #get} for others.
+     * @throws SQLException when a database access error occurs.
+     */
+    // queryList ResultSetSpliterator
+    private EntityMapper.Context prefetchReferences(EntityMapper<?> mapper, RowSource rows) throws SQLException {
+        if (mapper.references().size() == mapper.lazyReferences().size()) {
+            return context; // No references loaded together with the entity.
+        }
+        PrefetchContext prefetched = new PrefetchContext();
+        Set<Class<?>> path = new HashSet<>();
+        path.add(mapper.type());
+        prefetch(mapper, rows, prefetched, path);
+        return prefetched;
+    }
+
+    // prefetchReferences
+    private void prefetch(EntityMapper<?> mapper, RowSource rows, PrefetchContext prefetched, Set<Class<?>> path)
+            throws SQLException {
+        for (Map.Entry<String, Class<?>> reference : mapper.references().entrySet()) {
+            if (mapper.lazyReferences().contains(reference.getKey())) {
+                continue; // Lazy references are loaded on their first access.
+            }
+            if (!path.add(reference.getValue())) {
+                continue; // Reference cycle, these entities are loaded when they are read.
+            }
+            EntityMapper<?> referencedMapper = mapperFor(reference.getValue());
+            String condition = " WHERE \"" + referencedMapper.idColumn() + "\" IN (SELECT \""
+                    + reference.getKey() + "\" FROM (" + rows.sql() + "))";
+            // Load the references of the referenced entities first
+            prefetch(referencedMapper, new RowSource("SELECT * FROM \"" + referencedMapper.tableName() + "\""
+                    + condition, rows.parameters()), prefetched, path);
+            prefetchRows(referencedMapper, selectSql(referencedMapper) + condition, rows.parameters(), prefetched);
+            path.remove(reference.getValue());
+        }
+    }
+
+    // prefetch
+    private <R> void prefetchRows(EntityMapper<R> mapper, String sql, List<Object> parameters,
+                                  PrefetchContext prefetched) throws SQLException {
+        PreparedStatement prepared = connection.prepareStatement(sql);
+        try (PreparedStatement stmt = slowQueryLog != null ? BoundParameters.record(prepared) : prepared) {
+            for (int i = 0; i < parameters.size(); i++) {
+                stmt.setObject(i + 1, parameters.get(i));
+            }
+            try (QueryResult result = executeQuery(stmt, sql, mapper.type())) {
+                while (result.next()) {
+                    R entity = readRow(mapper, result.resultSet(), prefetched);
+                    if (metrics != null) {
+                        metrics.recordReferenceLoad(mapper.type());
+                    }
+                    prefetched.put(mapper.type(), mapper.getId(entity), entity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an entity from the current row. If a session is open, the instance tracked
+     * for the row ID is returned instead and newly read entities are tracked.
+     *
+     * @param mapper  The mapper of the entity.
+     * @param rs      The result set positioned on the row.
+     * @param context The context used to load references.
+     * @param <T>     The type parameter of the entity.
+     * @return The entity of the row.
+     * @throws SQLException when reading the row fails.
+     */
+    // get getAll prefetchRows
+    private <T> T readRow(EntityMapper<T> mapper, ResultSet rs, EntityMapper.Context context) throws SQLException {
+        if (session == null) {
+            return hydrate(mapper, rs, context);
+        }
+        long id = rs.getLong(1);
+        T entity = session.find(mapper.type(), id);
+        if (entity == null) {
+            entity = hydrate(mapper, rs, context);
+            session.register(mapper.type(), id, entity);
+            session.takeSnapshot(mapper.type(), id, mapper.values(entity, context)); // Saving it again is dirty checked.
+        }
+        return entity;
+    }
+
+    // readRow, the time of creating the entity is recorded as hydration
+    private <T> T hydrate(EntityMapper<T> mapper, ResultSet rs, EntityMapper.Context context) throws SQLException {
+        if (metrics == null) {
+            return mapper.read(rs, context);
+        }
+        long start = System.nanoTime();
+        T entity = mapper.read(rs, context);
+        metrics.recordRowRead(mapper.type(), System.nanoTime() - start);
+        return entity;
+    }
+
+    // stream
+    private void closeResultSet(QueryResult result, StatementCache.Lease lease) {
+        try (lease; result) {
+            // Closes the result set and returns the statement to the cache.
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to close result set", e);
+        }
+    }
+
+    /**
+     * Tracks a saved entity in the session with the snapshot of its saved column values
+     * and evicts it from the second-level cache.
+     *
+     * @param values column values of the entity, computed if <code>null</code>
+     */
+    // save saveBatch upsert upsertBatch
+    private <T> void track(EntityMapper<T> mapper, long id, T entity, Object[] values) throws SQLException {
+        if (session != null) {
+            session.register(mapper.type(), id, entity);
+            session.takeSnapshot(mapper.type(), id, values != null ? values : mapper.values(entity, context));
+        }
+        evict(mapper.type(), id); // The cached state may be outdated.
+    }
+
+    // delete deleteAll deleteWhere, deleted entities are no longer tracked or cached
+    private void forget(Class<?> type, long id) {
+        if (session != null) {
+            session.remove(type, id);
+        }
+        evict(type, id);
+    }
+
+    // track forget
+    private void evict(Class<?> type, long id) {
+        EntityCache cache = entityCache;
+        if (cache != null) {
+            cache.evict(type, id);
+            if (!transactions.isEmpty()) {
+                transactionEvictions.add(new CacheKey(type, id));
+            }
+        }
+    }
+
+    // commit, other connections may have cached the committed state between the write and the commit
+    private void evictCommitted() {
+        EntityCache cache = entityCache;
+        if (cache != null) {
+            for (CacheKey key : transactionEvictions) {
+                cache.evict(key.type(), key.id());
+            }
+        }
+        transactionEvictions.clear();
+    }
+
+    // saveBatch, entities not tracked by the session are considered changed
+    private <T> boolean isUnchanged(EntityMapper<T> mapper, T entity) {
+        Object[] snapshot = session != null ? session.snapshot(mapper.type(), mapper.getId(entity), entity) : null;
+        return snapshot != null && Arrays.deepEquals(snapshot, mapper.values(entity, context));
+    }
+
+    /**
+     * Builds a SELECT statement reading the id column followed by all other columns of the entity,
+     * which is the column order expected by {@link EntityMapper#read}.
+     *
+     * @param mapper mapper of the entity
+     * @return SELECT statement without a WHERE clause
+     */
+    // get getAll
+    private String selectSql(EntityMapper<?> mapper) {
+        StringBuilder sql = new StringBuilder("SELECT \"").append(mapper.idColumn()).append("\"");
+        for (String column : mapper.columns()) {
+            sql.append(", \"").append(column).append("\"");
         }
+        sql.append(" FROM \"").append(mapper.tableName()).append("\"");
+        return sql.toString();
+    }
 
-        sql.append(");"); // Close the SQL statement.
-        return sql.toString(); // Return the complete SQL statement as a string.
+    /**
+     * Inserts a new entity into the database using the cached INSERT statement of the entity class,
+     * returning the generated key.
+     *
+     * @param entity The entity to insert.
+     * @param mapper The mapper of the entity.
+     * @param <T>    The type parameter of the entity.
+     * @return The generated ID of the inserted entity.
+     * @throws SQLException when a database access error occurs.
+     */
+    // save
+    private <T> long insertEntity(T entity, EntityMapper<T> mapper) throws SQLException {
+        try (StatementCache.Lease lease = statements.acquire(mapper.type(), Operation.INSERT, () -> insertSql(mapper))) {
+            PreparedStatement stmt = lease.statement();
+            mapper.bind(entity, stmt, context); // Bind each column value to its corresponding placeholder.
+            int affectedRows = executeUpdate(stmt, lease.sql(), mapper.type()); // Execute the INSERT operation.
+            if (affectedRows == 0) {
+                throw new SQLException("Creating entity failed, no rows affected."); // Check if the INSERT operation affected any rows.
+            }
+            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                if (generatedKeys.next()) {
+                    return generatedKeys.getLong(1); // Retrieve and return the generated key (ID) for the inserted entity.
+                } else {
+                    throw new SQLException("Creating entity failed, no ID obtained."); // Handle case where no generated key was obtained.
+                }
+            }
+        }
     }
 
+    /**
+     * Updates an existing entity in the database. An entity tracked by the session is compared
+     * with the snapshot of its column values: only the changed columns are updated and an unchanged
+     * entity is not updated at all. Other entities are updated using the cached UPDATE statement
+     * of the entity class.
+     *
+     * @param entity   The entity to update.
+     * @param mapper   The mapper of the entity.
+     * @param entityId The ID of the entity to update.
+     * @return The column values of the updated entity, or null if they were not read.
+     * @throws SQLException when a database access error occurs.
+     */
+    // save
+    private <T> Object[] updateEntity(T entity, EntityMapper<T> mapper, long entityId) throws SQLException {
+        Object[] snapshot = session != null ? session.snapshot(mapper.type(), entityId, entity) : null;
+        if (snapshot == null) {
+            updateAllColumns(entity, mapper, entityId);
+            return null;
+        }
+        Object[] values = mapper.values(entity, context);
+        List<String> changedColumns = new ArrayList<>();
+        List<Object> changedValues = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            if (!Objects.deepEquals(values[i], snapshot[i])) {
+                changedColumns.add(mapper.columns().get(i));
+                changedValues.add(values[i]);
+            }
+        }
+        if (changedColumns.isEmpty()) {
+            if (metrics != null) {
+                metrics.recordSkippedUpdate(mapper.type());
+            }
+        } else if (changedColumns.size() == values.length) {
+            updateAllColumns(entity, mapper, entityId);
+        } else {
+            // Statements of partial updates are cached by their SQL, like queries
+            try (StatementCache.Lease lease = statements.acquire(mapper.type(), updateSql(mapper, changedColumns))) {
+                PreparedStatement stmt = lease.statement();
+                for (int i = 0; i < changedValues.size(); i++) {
+                    stmt.setObject(i + 1, changedValues.get(i));
+                }
+                stmt.setLong(changedValues.size() + 1, entityId);
+                executeUpdate(stmt, lease.sql(), mapper.type());
+            }
+            if (metrics != null) {
+                metrics.recordPartialUpdate(mapper.type());
+            }
+        }
+        return values;
+    }
+
+    // updateEntity
+    private <T> void updateAllColumns(T entity, EntityMapper<T> mapper, long entityId) throws SQLException {
+        try (StatementCache.Lease lease = statements.acquire(mapper.type(), Operation.UPDATE, () -> updateSql(mapper))) {
+            PreparedStatement stmt = lease.statement();
+            mapper.bind(entity, stmt, context); // Bind the column values of the entity.
+            stmt.setLong(mapper.columns().size() + 1, entityId); // Bind the entity ID as the last value, for the WHERE clause.
+            executeUpdate(stmt, lease.sql(), mapper.type()); // Execute the UPDATE operation.
+        }
+    }
+
+    /**
+     * Builds an INSERT SQL statement based on the entity's columns, excluding the ID.
+     *
+     * @param mapper The mapper of the entity.
+     * @return INSERT statement with a placeholder for every column.
+     */
+    // insertEntity saveBatch
+    private String insertSql(EntityMapper<?> mapper) {
+        StringBuilder sql = new StringBuilder("INSERT INTO \"" + mapper.tableName() + "\" (");
+        StringBuilder placeholders = new StringBuilder(); // For use in the prepared statement.
+
+        boolean first = true; // Flag to help format the SQL statement correctly.
+        for (String column : mapper.columns()) {
+            if (!first) {
+                sql.append(", ");
+                placeholders.append(", ");
+            } else {
+                first = false; // Update flag after the first column is processed.
+            }
+            sql.append("\"").append(column).append("\""); // Append column name to SQL statement.
+            placeholders.append("?"); // Use placeholders for values to be bound later.
+        }
+
+        sql.append(") VALUES (").append(placeholders).append(")"); // Complete the SQL statement.
+        return sql.toString();
+    }
+
+    /**
+     * Builds an INSERT statement of all columns followed by the ID, which updates all columns
+     * of the existing row instead if a row with the ID exists.
+     *
+     * @param mapper The mapper of the entity.
+     * @return INSERT ... ON CONFLICT DO UPDATE statement with a placeholder for every column and the ID.
+     */
+    // upsert upsertBatch
+    private String upsertSql(EntityMapper<?> mapper) {
+        String id = "\"" + mapper.idColumn() + "\"";
+        StringBuilder columns = new StringBuilder();
+        StringBuilder updates = new StringBuilder();
+        for (String column : mapper.columns()) {
+            columns.append("\"").append(column).append("\", ");
+            if (!updates.isEmpty()) {
+                updates.append(", ");
+            }
+            updates.append("\"").append(column).append("\" = excluded.\"").append(column).append("\"");
+        }
+        return "INSERT INTO \"" + mapper.tableName() + "\" (" + columns + id + ") VALUES ("
+                + "?, ".repeat(mapper.columns().size()) + "?) ON CONFLICT(" + id + ") "
+                + (updates.isEmpty() ? "DO NOTHING" : "DO UPDATE SET " + updates);
+    }
+
+    /**
+     * Builds an UPDATE SQL statement setting all columns of the entity, with the ID as the last parameter.
+     *
+     * @param mapper The mapper of the entity.
+     * @return UPDATE statement with a placeholder for every column and the ID.
+     */
+    // updateAllColumns saveBatch
+    private String updateSql(EntityMapper<?> mapper) {
+        return updateSql(mapper, mapper.columns());
+    }
+
+    /**
+     * Builds an UPDATE SQL statement setting the given columns, with the ID as the last parameter.
+     *
+     * @param mapper  The mapper of the entity.
+     * @param columns The columns to set.
+     * @return UPDATE statement with a placeholder for every given column and the ID.
+     */
+    // updateEntity
+    private String updateSql(EntityMapper<?> mapper, List<String> columns) {
+        StringBuilder sql = new StringBuilder("UPDATE \"" + mapper.tableName() + "\" SET "); // Start building the UPDATE SQL statement.
+
+        boolean first = true; // Flag to ensure correct comma placement in the SQL statement.
+        for (String column : columns) {
+            if (!first) {
+                sql.append(", "); // Append comma before adding the next column-value pair, except for the first pair.
+            } else {
+                first = false; // After handling the first column-value pair, change the flag.
+            }
+            sql.append("\"").append(column).append("\" = ?"); // Add the column name and placeholder to the SQL statement.
+        }
+
+        sql.append(" WHERE \"").append(mapper.idColumn()).append("\" = ?"); // Complete the SQL statement with the WHERE clause.
+        return sql.toString();
+    }
+
+    // Start of a measured interval, without metrics and slow query log the time is not read at all
+    private long startTimer() {
+        return metrics != null || slowQueryLog != null ? System.nanoTime() : 0;
+    }
+
+    // public operations
+    private void recordOperation(PersistenceMetrics.Operation operation, Class<?> type, long start) {
+        if (metrics != null && start != 0) { // Metrics may have been set during the operation.
+            metrics.recordOperation(operation, type, System.nanoTime() - start);
+        }
+    }
+
+    // saveAll, entities of several types are recorded under Object
+    private static Class<?> commonType(Collection<?> entities) {
+        Class<?> type = null;
+        for (Object entity : entities) {
+            if (type != null && type != entity.getClass()) {
+                return Object.class;
+            }
+            type = entity.getClass();
+        }
+        return type != null ? type : Object.class;
+    }
+
+    // get count stream queryList prefetchRows
+    private QueryResult executeQuery(PreparedStatement stmt, String sql, Class<?> type) throws SQLException {
+        SqlExecuteEvent event = new SqlExecuteEvent();
+        event.begin();
+        long start = startTimer();
+        ResultSet rs = stmt.executeQuery();
+        long nanos = start != 0 ? System.nanoTime() - start : 0;
+        if (metrics != null && start != 0) {
+            metrics.recordStatement(type, nanos);
+        }
+        return new QueryResult(rs, stmt, sql, type, event, nanos);
+    }
+
+    // delete insertEntity updateEntity
+    private int executeUpdate(PreparedStatement stmt, String sql, Class<?> type) throws SQLException {
+        SqlExecuteEvent event = new SqlExecuteEvent();
+        event.begin();
+        long start = startTimer();
+        int rows = stmt.executeUpdate();
+        if (start != 0) {
+            long nanos = System.nanoTime() - start;
+            if (metrics != null) {
+                metrics.recordStatement(type, nanos);
+                metrics.recordRowsWritten(type, rows);
+            }
+            logSlowStatement(stmt, sql, nanos);
+        }
+        event.complete(sql, type, rows);
+        return rows;
+    }
+
+    // saveBatch
+    private void executeBatch(PreparedStatement stmt, String sql, Class<?> type) throws SQLException {
+        SqlExecuteEvent event = new SqlExecuteEvent();
+        event.begin();
+        long start = startTimer();
+        int[] counts = stmt.executeBatch();
+        long rows = 0;
+        for (int count : counts) {
+            rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        }
+        if (start != 0) {
+            long nanos = System.nanoTime() - start;
+            if (metrics != null) {
+                metrics.recordStatement(type, nanos);
+                metrics.recordRowsWritten(type, rows);
+            }
+            logSlowStatement(stmt, sql, nanos);
+        }
+        event.complete(sql, type, rows);
+    }
+
+    /**
+     * Log the statement if a slow query log is set and the statement took longer than its threshold.
+     * The query plan is read only for slow statements.
+     */
+    // executeUpdate executeBatch QueryResult
+    private void logSlowStatement(PreparedStatement stmt, String sql, long nanos) {
+        SlowQueryLog log = slowQueryLog;
+        if (log != null && log.isSlow(nanos)) {
+            List<Object> parameters = BoundParameters.of(stmt);
+            log.record(sql, parameters, nanos, queryPlan(sql, parameters));
+        }
+    }
+
+    /**
+     * @return lines of <code>EXPLAIN QUERY PLAN</code> of the statement, nested steps indented by two spaces
+     */
+    // logSlowStatement
+    private List<String> queryPlan(String sql, List<Object> parameters) {
+        try (PreparedStatement stmt = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            for (int i = 0; i < parameters.size(); i++) {
+                stmt.setObject(i + 1, parameters.get(i));
+            }
+            List<String> plan = new ArrayList<>();
+            Map<Integer, Integer> depths = new HashMap<>(); // The root steps have the parent 0
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int depth = depths.getOrDefault(rs.getInt("parent"), -1) + 1;
+                    depths.put(rs.getInt("id"), depth);
+                    plan.add("  ".repeat(depth) + rs.getString("detail"));
+                }
+            }
+            return plan;
+        } catch (SQLException e) {
+            // The statement itself succeeded, a missing plan must not fail it
+            return List.of("Query plan not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executes a general SQL statement, typically used for table creation.
+     *
+     * @param sql The SQL statement to execute.
+     * @throws PersistenceException If executing the SQL statement fails.
+     */
+    // createTables
+    private void executeSQL(String sql) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql); // Execute the given SQL statement, which is typically used for DDL commands like creating tables.
+        } catch (SQLException e) {
+            // If any SQLException occurs during the execution, wrap it in a custom PersistenceException.
+            throw new PersistenceException("Error executing SQL: " + sql, e);
+        }
+    }
+
+    /**
+     * @return lower case names of all tables in the database
+     */
+    // createTables
+    private Set<String> existingTables() {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table'")) {
+            Set<String> names = new HashSet<>();
+            while (rs.next()) {
+                // SQLite compares table names case-insensitively
+                names.add(rs.getString(1).toLowerCase(Locale.ROOT));
+            }
+            return names;
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to read existing tables", e);
+        }
+    }
+
+    /**
+     * SQL query returning whole rows of an entity table, with its parameter values.
+     */
+    private record RowSource(String sql, List<Object> parameters) {
+    }
+
+    /**
+     * Transaction or nested savepoint started by {@link #begin()}.
+     *
+     * @param savepoint  savepoint of a nested transaction, <code>null</code> for the outermost one
+     * @param insertMark number of entities inserted in the enclosing transactions
+     */
+    private record TransactionLevel(Savepoint savepoint, int insertMark) {
+    }
+
+    /**
+     * Entity in the second-level cache.
+     */
+    private record CacheKey(Class<?> type, long id) {
+    }
+
+    /**
+     * Database work which may throw {@link SQLException}.
+     */
+    @FunctionalInterface
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Gives mappers access to referenced entities.
+     */
+    private class ManagerContext implements EntityMapper.Context {
+        @Override
+        public <R> R load(Class<R> type, long id) {
+            ReferenceLoadEvent event = new ReferenceLoadEvent();
+            event.begin();
+            if (metrics != null) {
+                metrics.recordReferenceLoad(type);
+            }
+            try {
+                return get(type, id).orElse(null); // Recursively fetch the related entity.
+            } finally {
+                event.complete(type, id, false);
+            }
+        }
+
+        @Override
+        public <R> Ref<R> reference(Class<R> type, long id) {
+            PersistenceManager loader = referenceLoader;
+            return Ref.lazy(type, id, () -> {
+                ReferenceLoadEvent event = new ReferenceLoadEvent();
+                event.begin();
+                if (metrics != null) {
+                    metrics.recordReferenceLoad(type);
+                }
+                try {
+                    return loader.get(type, id).orElse(null);
+                } finally {
+                    event.complete(type, id, true);
+                }
+            });
+        }
+
+        @Override
+        public long idOf(Object entity) {
+            if (entity instanceof Ref<?> ref) {
+                // A reference which was not accessed or whose row is missing keeps the foreign key it was read with.
+                if (!ref.isLoaded() || ref.get() == null) {
+                    return ref.getId();
+                }
+                entity = ref.get();
+            }
+            long id = mapperOf(entity).getId(entity);
+            // If the referenced entity does not have a valid ID, throw an exception to ensure referential integrity.
+            if (id == 0) {
+                throw new PersistenceException("Referenced entity " + entity.getClass().getSimpleName()
+                        + " must be saved before saving the referencing entity");
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Serves referenced entities loaded in advance, other entities are loaded one by one.
+     */
+    private class PrefetchContext implements EntityMapper.Context {
+        private final Map<Class<?>, Map<Long, Object>> entities = new HashMap<>();
+
+        void put(Class<?> type, long id, Object entity) {
+            entities.computeIfAbsent(type, key -> new HashMap<>()).put(id, entity);
+        }
+
+        @Override
+        public <R> R load(Class<R> type, long id) {
+            Object entity = entities.getOrDefault(type, Map.of()).get(id);
+            return entity != null ? type.cast(entity) : context.load(type, id);
+        }
+
+        @Override
+        public <R> Ref<R> reference(Class<R> type, long id) {
+            return context.reference(type, id);
+        }
+
+        @Override
+        public long idOf(Object entity) {
+            return context.idOf(entity);
+        }
+    }
+
+    /**
+     * Result set of an executed query. Counts the fetched rows, records the time of fetching them,
+     * and when it is closed, completes the {@link SqlExecuteEvent} of the query and logs a slow query.
+     */
+    private final class QueryResult implements AutoCloseable {
+        private final ResultSet rs;
+        private final PreparedStatement stmt;
+        private final String sql;
+        private final Class<?> type;
+        private final SqlExecuteEvent event;
+        private long rows;
+        private long jdbcNanos;
+
+        QueryResult(ResultSet rs, PreparedStatement stmt, String sql, Class<?> type, SqlExecuteEvent event,
+                    long executeNanos) {
+            this.rs = rs;
+            this.stmt = stmt;
+            this.sql = sql;
+            this.type = type;
+            this.event = event;
+            this.jdbcNanos = executeNanos;
+        }
+
+        ResultSet resultSet() {
+            return rs;
+        }
+
+        // Fetching a row is JDBC time
+        boolean next() throws SQLException {
+            boolean next;
+            if (metrics == null && slowQueryLog == null) {
+                next = rs.next();
+            } else {
+                long start = System.nanoTime();
+                next = rs.next();
+                long nanos = System.nanoTime() - start;
+                jdbcNanos += nanos;
+                if (metrics != null) {
+                    metrics.recordFetch(type, nanos);
+                }
+            }
+            if (next) {
+                rows++;
+            }
+            return next;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                rs.close();
+            } finally {
+                event.complete(sql, type, rows);
+            }
+            logSlowStatement(stmt, sql, jdbcNanos);
+        }
+    }
+
+    /**
+     * Reads entities from the rows of an open result set ordered by ID one at a time. When the first row
+     * of a chunk is read, the references of the chunk are loaded, replacing those of the previous chunk.
+     * Rows changed while streaming may miss their prefetched references, which are then loaded one by one.
+     */
+    private class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final EntityMapper<T> mapper;
+        private final QueryResult result;
+        private final int chunkSize;
+        private final String chunkSql;
+        private EntityMapper.Context rowContext = context;
+        private int chunkRowsLeft;
+
+        ResultSetSpliterator(EntityMapper<T> mapper, QueryResult result, int chunkSize) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.mapper = mapper;
+            this.result = result;
+            this.chunkSize = chunkSize;
+            String id = "\"" + mapper.idColumn() + "\"";
+            this.chunkSql = "SELECT * FROM \"" + mapper.tableName() + "\" WHERE " + id + " >= ? ORDER BY " + id
+                    + " LIMIT ?";
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            try {
+                if (!result.next()) {
+                    return false;
+                }
+                if (chunkRowsLeft == 0) {
+                    long firstId = result.resultSet().getLong(1);
+                    rowContext = prefetchReferences(mapper, new RowSource(chunkSql, List.of(firstId, chunkSize)));
+                    chunkRowsLeft = chunkSize;
+                }
+                chunkRowsLeft--;
+                action.accept(readRow(mapper, result.resultSet(), rowContext));
+                return true;
+            } catch (SQLException e) {
+                throw new PersistenceException("Error reading entity of type \"" + mapper.type().getSimpleName() + "\"", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package sk.tuke.meta.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Catalog of all entities of a compilation unit with their DDL.
+ * <p>
+ * The annotation processor generates an implementation listing every class annotated with
+ * {@link sk.tuke.meta.persistence.annotations.Table} and registers it as a service, so
+ * {@link PersistenceManager#createTables} can create the tables of all entities without
+ * scanning the class path.
+ */
+public interface SchemaCatalog {
+
+    /**
+     * @return tables of the entities, referenced tables before the tables referencing them
+     */
+    List<TableDefinition> tables();
+
+    /**
+     * Find all catalogs registered as services.
+     *
+     * @param classLoader class loader used to find the catalogs
+     * @return tables of all catalogs in dependency order of every catalog
+     */
+    static List<TableDefinition> findTables(ClassLoader classLoader) {
+        List<TableDefinition> tables = new ArrayList<>();
+        for (SchemaCatalog catalog : ServiceLoader.load(SchemaCatalog.class, classLoader)) {
+            tables.addAll(catalog.tables());
+        }
+        return tables;
+    }
+
+    /**
+     * Table of one entity.
+     *
+     * @param type           entity class
+     * @param name           table name
+     * @param createTableSql <code>CREATE TABLE IF NOT EXISTS</code> statement
+     * @param createIndexSql <code>CREATE INDEX IF NOT EXISTS</code> statements
+     */
+    record TableDefinition(Class<?> type, String name, String createTableSql, List<String> createIndexSql) {
+    }
+}
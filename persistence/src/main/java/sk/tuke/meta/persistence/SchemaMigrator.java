@@ -0,0 +1,478 @@
+package sk.tuke.meta.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Migrates existing tables to the current entity metadata without reloading their data.
+ * <p>
+ * The wanted schema of every table is created in a temporary in-memory database and compared with
+ * the existing table using <code>PRAGMA table_info</code>, <code>foreign_key_list</code> and
+ * <code>index_list</code>:
+ * <ul>
+ *     <li>missing tables are created,</li>
+ *     <li>new columns which SQLite can add in place are added by <code>ALTER TABLE ADD COLUMN</code>,</li>
+ *     <li>missing and changed indexes are created, generated indexes (named <code>idx_&lt;table&gt;_...</code>)
+ *     no longer declared by the entity are dropped and other indexes are kept,</li>
+ *     <li>any other change, like a removed column or a changed column type, constraint or foreign key,
+ *     rebuilds the table by copying its rows into a new table which then replaces the old one.</li>
+ * </ul>
+ * All changes are applied in one transaction, so other connections keep reading the old schema
+ * until the migration commits. Every migrated table gets a new version recorded with the executed
+ * statements in the <code>schema_version</code> table.
+ */
+public class SchemaMigrator {
+    private static final String VERSION_TABLE = "schema_version";
+    private static final String TARGET_SCHEMA = "migration_target";
+    private static final String REBUILD_SUFFIX = "_migration";
+    private static final Pattern INDEX_NAME = Pattern.compile("INDEX IF NOT EXISTS \"([^\"]+)\"");
+
+    /**
+     * Kind of change applied to a table.
+     */
+    public enum Kind {
+        /**
+         * The table did not exist and was created.
+         */
+        CREATE,
+        /**
+         * Columns were added or indexes changed in place.
+         */
+        ALTER,
+        /**
+         * The table was replaced by a copy with the new schema.
+         */
+        REBUILD
+    }
+
+    /**
+     * Applied migration of one table.
+     *
+     * @param table      table name
+     * @param version    schema version of the table after the migration, starting with 1
+     * @param kind       kind of the change
+     * @param statements executed statements
+     * @param appliedAt  time the migration was applied
+     */
+    public record Migration(String table, int version, Kind kind, List<String> statements, Instant appliedAt) {
+    }
+
+    private final ReflectivePersistenceManager manager;
+    private final Connection connection;
+
+    /**
+     * @param manager manager providing the entity metadata and the connection of the database to migrate
+     */
+    public SchemaMigrator(ReflectivePersistenceManager manager) {
+        this.manager = manager;
+        this.connection = manager.connection();
+    }
+
+    /**
+     * Migrate tables of the given entity classes to their current metadata.
+     *
+     * @param types entity classes, all entities of the {@link SchemaCatalog} if empty
+     * @return migrations applied to changed tables, empty if the schema is up to date
+     * @throws PersistenceException If a transaction is active or the migration fails, in which case
+     *                              no change is applied.
+     */
+    public List<Migration> migrate(Class<?>... types) {
+        if (manager.isTransactionActive()) {
+            throw new PersistenceException("Schema cannot be migrated in a transaction");
+        }
+        List<Plan> plans = plan(manager.tableDefinitions(types));
+        if (plans.isEmpty()) {
+            return List.of();
+        }
+
+        // Dropping a referenced table must neither delete nor check the rows referencing it
+        boolean rebuild = plans.stream().anyMatch(plan -> plan.kind == Kind.REBUILD);
+        boolean foreignKeys = rebuild && queryInt("PRAGMA foreign_keys") == 1;
+        if (foreignKeys) {
+            execute("PRAGMA foreign_keys = OFF");
+        }
+        try {
+            List<Migration> applied = new ArrayList<>();
+            manager.inTransaction(ignored -> {
+                execute("CREATE TABLE IF NOT EXISTS \"" + VERSION_TABLE + "\" (\"id\" INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "\"table_name\" TEXT NOT NULL, \"version\" INTEGER NOT NULL, \"kind\" TEXT NOT NULL, "
+                        + "\"statements\" TEXT NOT NULL, \"applied_at\" TEXT NOT NULL)");
+                for (Plan plan : plans) {
+                    plan.statements.forEach(this::execute);
+                    applied.add(recordVersion(plan));
+                }
+                if (foreignKeys) {
+                    checkForeignKeys();
+                }
+            });
+            return applied;
+        } finally {
+            if (foreignKeys) {
+                execute("PRAGMA foreign_keys = ON");
+            }
+        }
+    }
+
+    /**
+     * @return all recorded migrations in the order they were applied
+     */
+    public List<Migration> history() {
+        List<Migration> migrations = new ArrayList<>();
+        if (!tableExists("main", VERSION_TABLE)) {
+            return migrations;
+        }
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT \"table_name\", \"version\", \"kind\", \"statements\", "
+                     + "\"applied_at\" FROM \"" + VERSION_TABLE + "\" ORDER BY \"id\"")) {
+            while (rs.next()) {
+                migrations.add(new Migration(rs.getString(1), rs.getInt(2), Kind.valueOf(rs.getString(3)),
+                        List.of(rs.getString(4).split(";\n")), Instant.parse(rs.getString(5))));
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to read the schema versions", e);
+        }
+        return migrations;
+    }
+
+    /**
+     * Compares the tables with their wanted schema created in an attached in-memory database.
+     *
+     * @param tables definitions of the tables
+     * @return statements migrating the changed tables
+     */
+    // migrate
+    private List<Plan> plan(List<SchemaCatalog.TableDefinition> tables) {
+        List<Plan> plans = new ArrayList<>();
+        execute("ATTACH DATABASE ':memory:' AS \"" + TARGET_SCHEMA + "\"");
+        try {
+            for (SchemaCatalog.TableDefinition table : tables) {
+                Plan plan = planTable(table);
+                if (plan != null) {
+                    plans.add(plan);
+                }
+            }
+        } finally {
+            execute("DETACH DATABASE \"" + TARGET_SCHEMA + "\"");
+        }
+        return plans;
+    }
+
+    // plan
+    private Plan planTable(SchemaCatalog.TableDefinition table) {
+        String name = table.name();
+        if (!tableExists("main", name)) {
+            List<String> statements = new ArrayList<>();
+            statements.add(table.createTableSql());
+            statements.addAll(table.createIndexSql());
+            return new Plan(name, Kind.CREATE, statements);
+        }
+        if (!tableExists(TARGET_SCHEMA, name)) {
+            execute(createTableAs(table, "\"" + TARGET_SCHEMA + "\".\"" + name + "\""));
+        }
+        TableInfo existing = tableInfo("main", name);
+        TableInfo wanted = tableInfo(TARGET_SCHEMA, name);
+
+        // Columns are compared by name, the order of columns does not matter since rows are read by name
+        boolean rebuild = !wanted.uniqueColumns.equals(existing.uniqueColumns);
+        List<String> statements = new ArrayList<>();
+        for (ColumnInfo column : existing.columns.values()) {
+            ColumnInfo wantedColumn = wanted.columns.get(column.key());
+            rebuild |= wantedColumn == null || !wantedColumn.sameDefinition(column);
+        }
+        for (ColumnInfo column : wanted.columns.values()) {
+            if (!existing.columns.containsKey(column.key())) {
+                rebuild |= !column.canBeAdded();
+                statements.add("ALTER TABLE \"" + name + "\" ADD COLUMN " + column.definition());
+            }
+        }
+        if (rebuild) {
+            return new Plan(name, Kind.REBUILD, rebuildStatements(table, existing, wanted));
+        }
+
+        // Generated indexes no longer declared by the entity are dropped, changed indexes are recreated.
+        // Indexes named otherwise were created by hand and are left alone.
+        Map<String, String> existingIndexes = indexes(name);
+        Set<String> wantedIndexes = new HashSet<>();
+        for (String indexSql : table.createIndexSql()) {
+            String indexName = indexName(indexSql);
+            wantedIndexes.add(indexName);
+            String existingSql = existingIndexes.get(indexName);
+            if (existingSql != null && !normalize(existingSql).equals(normalize(indexSql))) {
+                statements.add("DROP INDEX \"" + indexName + "\"");
+                existingSql = null;
+            }
+            if (existingSql == null) {
+                statements.add(indexSql);
+            }
+        }
+        for (String indexName : existingIndexes.keySet()) {
+            if (!wantedIndexes.contains(indexName) && indexName.startsWith("idx_" + name + "_")) {
+                statements.add("DROP INDEX \"" + indexName + "\"");
+            }
+        }
+        return statements.isEmpty() ? null : new Plan(name, Kind.ALTER, statements);
+    }
+
+    /**
+     * Builds statements copying the table into a new table with the wanted schema, which then
+     * replaces the old table. Values of columns present in both schemas are kept, including the ids,
+     * and the AUTOINCREMENT counter is preserved so ids of deleted rows are not reused.
+     */
+    // planTable
+    private List<String> rebuildStatements(SchemaCatalog.TableDefinition table, TableInfo existing, TableInfo wanted) {
+        String name = table.name();
+        String copyName = name + REBUILD_SUFFIX;
+        List<String> copiedColumns = new ArrayList<>();
+        for (ColumnInfo column : wanted.columns.values()) {
+            if (existing.columns.containsKey(column.key())) {
+                copiedColumns.add("\"" + column.name + "\"");
+            }
+        }
+        String columnList = String.join(", ", copiedColumns);
+
+        List<String> statements = new ArrayList<>();
+        statements.add("DROP TABLE IF EXISTS \"" + copyName + "\"");
+        statements.add(createTableAs(table, "\"" + copyName + "\""));
+        statements.add("INSERT INTO \"" + copyName + "\" (" + columnList + ") SELECT " + columnList
+                + " FROM \"" + name + "\"");
+        if (tableExists("main", "sqlite_sequence")) {
+            statements.add("DELETE FROM sqlite_sequence WHERE name = " + stringLiteral(copyName));
+            statements.add("INSERT INTO sqlite_sequence (name, seq) SELECT " + stringLiteral(copyName)
+                    + ", seq FROM sqlite_sequence WHERE name = " + stringLiteral(name));
+        }
+        statements.add("DROP TABLE \"" + name + "\"");
+        statements.add("ALTER TABLE \"" + copyName + "\" RENAME TO \"" + name + "\"");
+        statements.addAll(table.createIndexSql());
+        return statements;
+    }
+
+    // migrate
+    private Migration recordVersion(Plan plan) {
+        Instant appliedAt = Instant.now();
+        String select = "SELECT COALESCE(MAX(\"version\"), 0) + 1 FROM \"" + VERSION_TABLE + "\" WHERE \"table_name\" = ?";
+        String insert = "INSERT INTO \"" + VERSION_TABLE
+                + "\" (\"table_name\", \"version\", \"kind\", \"statements\", \"applied_at\") VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement selectStmt = connection.prepareStatement(select);
+             PreparedStatement insertStmt = connection.prepareStatement(insert)) {
+            selectStmt.setString(1, plan.table);
+            int version;
+            try (ResultSet rs = selectStmt.executeQuery()) {
+                rs.next();
+                version = rs.getInt(1);
+            }
+            insertStmt.setString(1, plan.table);
+            insertStmt.setInt(2, version);
+            insertStmt.setString(3, plan.kind.name());
+            insertStmt.setString(4, String.join(";\n", plan.statements));
+            insertStmt.setString(5, appliedAt.toString());
+            insertStmt.executeUpdate();
+            return new Migration(plan.table, version, plan.kind, List.copyOf(plan.statements), appliedAt);
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to record schema version of table " + plan.table, e);
+        }
+    }
+
+    // migrate
+    private void checkForeignKeys() {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA foreign_key_check")) {
+            if (rs.next()) {
+                throw new PersistenceException("Migration violates a foreign key of table " + rs.getString(1)
+                        + " referencing table " + rs.getString(3));
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to check foreign keys", e);
+        }
+    }
+
+    // planTable
+    private TableInfo tableInfo(String schema, String table) {
+        Map<String, ColumnInfo> columns = new LinkedHashMap<>();
+        Map<String, String> references = new HashMap<>();
+        Set<List<String>> uniqueColumns = new HashSet<>();
+        try (Statement stmt = connection.createStatement()) {
+            String pragma = "PRAGMA \"" + schema + "\".";
+            String quotedTable = "(" + stringLiteral(table) + ")";
+            try (ResultSet rs = stmt.executeQuery(pragma + "foreign_key_list" + quotedTable)) {
+                while (rs.next()) {
+                    String target = rs.getString("to");
+                    references.put(rs.getString("from").toLowerCase(Locale.ROOT), "\"" + rs.getString("table") + "\""
+                            + (target == null ? "" : "(\"" + target + "\")"));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery(pragma + "table_info" + quotedTable)) {
+                while (rs.next()) {
+                    String column = rs.getString("name");
+                    columns.put(column.toLowerCase(Locale.ROOT), new ColumnInfo(column, rs.getString("type"),
+                            rs.getBoolean("notnull"), rs.getString("dflt_value"), rs.getInt("pk"),
+                            references.get(column.toLowerCase(Locale.ROOT))));
+                }
+            }
+            List<String> uniqueIndexes = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery(pragma + "index_list" + quotedTable)) {
+                while (rs.next()) {
+                    if ("u".equals(rs.getString("origin"))) {
+                        uniqueIndexes.add(rs.getString("name"));
+                    }
+                }
+            }
+            for (String index : uniqueIndexes) {
+                List<String> indexColumns = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery(pragma + "index_info(" + stringLiteral(index) + ")")) {
+                    while (rs.next()) {
+                        indexColumns.add(rs.getString("name").toLowerCase(Locale.ROOT));
+                    }
+                }
+                uniqueColumns.add(indexColumns);
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to read schema of table " + table, e);
+        }
+        return new TableInfo(columns, uniqueColumns);
+    }
+
+    /**
+     * @return statements of indexes created by <code>CREATE INDEX</code> on the table, by index name
+     */
+    // planTable
+    private Map<String, String> indexes(String table) {
+        Map<String, String> indexes = new HashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT name, sql FROM main.sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    indexes.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to read indexes of table " + table, e);
+        }
+        return indexes;
+    }
+
+    // planTable history rebuildStatements
+    private boolean tableExists(String schema, String table) {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT 1 FROM \"" + schema + "\".sqlite_master WHERE type = 'table' AND name = ? COLLATE NOCASE")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Failed to look up table " + table, e);
+        }
+    }
+
+    // planTable rebuildStatements
+    private String createTableAs(SchemaCatalog.TableDefinition table, String qualifiedName) {
+        String prefix = "CREATE TABLE IF NOT EXISTS \"" + table.name() + "\"";
+        if (!table.createTableSql().startsWith(prefix)) {
+            throw new PersistenceException("Unsupported CREATE TABLE statement of table " + table.name());
+        }
+        return "CREATE TABLE " + qualifiedName + table.createTableSql().substring(prefix.length());
+    }
+
+    // planTable
+    private static String indexName(String indexSql) {
+        Matcher matcher = INDEX_NAME.matcher(indexSql);
+        if (!matcher.find()) {
+            throw new PersistenceException("Unsupported CREATE INDEX statement: " + indexSql);
+        }
+        return matcher.group(1);
+    }
+
+    // planTable, SQLite stores statements without IF NOT EXISTS
+    private static String normalize(String sql) {
+        return sql.replace(" IF NOT EXISTS", "").replaceAll("\\s+", " ").trim();
+    }
+
+    private static String stringLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    // migrate plan
+    private void execute(String sql) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        } catch (SQLException e) {
+            throw new PersistenceException("Error executing SQL: " + sql, e);
+        }
+    }
+
+    // migrate
+    private int queryInt(String sql) {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            throw new PersistenceException("Error executing SQL: " + sql, e);
+        }
+    }
+
+    /**
+     * Statements migrating one table.
+     */
+    private record Plan(String table, Kind kind, List<String> statements) {
+    }
+
+    /**
+     * Columns and unique constraints of a table, columns keyed by their lower case names.
+     */
+    private record TableInfo(Map<String, ColumnInfo> columns, Set<List<String>> uniqueColumns) {
+    }
+
+    /**
+     * Column as described by <code>PRAGMA table_info</code>.
+     *
+     * @param references referenced table and column, <code>null</code> if the column is not a foreign key
+     */
+    private record ColumnInfo(String name, String type, boolean notNull, String defaultValue, int primaryKey,
+                              String references) {
+        String key() {
+            return name.toLowerCase(Locale.ROOT);
+        }
+
+        boolean sameDefinition(ColumnInfo other) {
+            return type.equalsIgnoreCase(other.type) && notNull == other.notNull && primaryKey == other.primaryKey
+                    && Objects.equals(defaultValue, other.defaultValue) && Objects.equals(references, other.references);
+        }
+
+        // SQLite cannot add key columns or NOT NULL columns without a default value to existing rows
+        boolean canBeAdded() {
+            return primaryKey == 0 && !(notNull && defaultValue == null);
+        }
+
+        String definition() {
+            StringBuilder definition = new StringBuilder("\"").append(name).append("\"");
+            if (!type.isEmpty()) {
+                definition.append(" ").append(type);
+            }
+            if (notNull) {
+                definition.append(" NOT NULL");
+            }
+            if (defaultValue != null) {
+                definition.append(" DEFAULT ").append(defaultValue);
+            }
+            if (references != null) {
+                definition.append(" REFERENCES ").append(references);
+            }
+            return definition.toString();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package sk.tuke.meta.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Unit of work of a {@link ReflectivePersistenceManager}.
+ * <p>
+ * While a session is open, every entity loaded or saved by the manager is tracked
+ * in an identity map keyed by entity class and id. Loading the same row again,
+ * directly or as a reference of another entity, returns the tracked instance
+ * without querying the database. Closing the session stops the tracking.
+ * <p>
+ * The session also keeps a snapshot of the column values of every tracked entity as it was
+ * last loaded or saved. Saving a tracked entity updates only the columns which differ
+ * from the snapshot and skips unchanged entities altogether.
+ */
+public final class Session implements AutoCloseable {
+    private final Map<Class<?>, Map<Long, Object>> entities = new HashMap<>();
+    private final Map<Class<?>, Map<Long, Object[]>> snapshots = new HashMap<>();
+    private final Consumer<Session> onClose;
+
+    Session(Consumer<Session> onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Find a tracked entity.
+     *
+     * @param type entity class
+     * @param id   primary key value
+     * @return the tracked entity or <code>null</code>
+     */
+    <T> T find(Class<T> type, long id) {
+        Map<Long, Object> byId = entities.get(type);
+        return byId == null ? null : type.cast(byId.get(id));
+    }
+
+    void register(Class<?> type, long id, Object entity) {
+        entities.computeIfAbsent(type, key -> new HashMap<>()).put(id, entity);
+    }
+
+    void remove(Class<?> type, long id) {
+        Map<Long, Object> byId = entities.get(type);
+        if (byId != null) {
+            byId.remove(id);
+        }
+        forgetSnapshot(type, id);
+    }
+
+    /**
+     * Find the column values of a tracked entity as it was last loaded or saved.
+     *
+     * @param type   entity class
+     * @param id     primary key value
+     * @param entity the entity, snapshots of other instances with the same id are not returned
+     * @return column values in the order of {@link EntityMapper#columns()} or <code>null</code>
+     */
+    Object[] snapshot(Class<?> type, long id, Object entity) {
+        if (find(type, id) != entity) {
+            return null;
+        }
+        Map<Long, Object[]> byId = snapshots.get(type);
+        return byId == null ? null : byId.get(id);
+    }
+
+    void takeSnapshot(Class<?> type, long id, Object[] values) {
+        snapshots.computeIfAbsent(type, key -> new HashMap<>()).put(id, values);
+    }
+
+    void forgetSnapshot(Class<?> type, long id) {
+        Map<Long, Object[]> byId = snapshots.get(type);
+        if (byId != null) {
+            byId.remove(id);
+        }
+    }
+
+    // Rolled back writes make snapshots of saved entities differ from the database
+    void forgetSnapshots() {
+        snapshots.clear();
+    }
+
+    /**
+     * @return number of tracked entities
+     */
+    public int size() {
+        return entities.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * Stop tracking all entities, the session stays open.
+     */
+    public void clear() {
+        entities.clear();
+        snapshots.clear();
+    }
+
+    /**
+     * Close the session and stop tracking entities.
+     */
+    @Override
+    public void close() {
+        entities.clear();
+        snapshots.clear();
+        onClose.accept(this);
+    }
+}
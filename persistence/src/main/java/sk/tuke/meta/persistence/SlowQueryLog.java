@@ -0,0 +1,142 @@
+package sk.tuke.meta.persistence;
+
+import java.lang.System.Logger.Level;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Log of statements which took longer than a threshold.
+ * <p>
+ * Every slow statement is logged as a warning to the {@link System.Logger} named after this class,
+ * with its SQL, bound parameters, duration and the <code>EXPLAIN QUERY PLAN</code> of SQLite.
+ * The slowest statements are also kept in memory and can be read by {@link #slowest()}.
+ * The duration of a query includes fetching its rows, but not reading entities from them.
+ * <p>
+ * The log is thread-safe and may be shared by several managers.
+ */
+public class SlowQueryLog {
+    private static final System.Logger LOGGER = System.getLogger(SlowQueryLog.class.getName());
+    private static final String REDACTED = "?";
+    private static final Comparator<SlowStatement> BY_DURATION = Comparator.comparingLong(SlowStatement::durationNanos);
+
+    private final long thresholdNanos;
+    private final int capacity;
+    private final boolean redactParameters;
+    // Fastest of the kept statements first, so it is the one replaced
+    private final PriorityQueue<SlowStatement> slowest;
+    private long count;
+
+    /**
+     * @param threshold        statements running at least this long are logged
+     * @param capacity         number of the slowest statements kept in memory
+     * @param redactParameters whether to hide the values of bound parameters, e.g. because they contain personal data
+     */
+    public SlowQueryLog(Duration threshold, int capacity, boolean redactParameters) {
+        if (threshold.isNegative()) {
+            throw new IllegalArgumentException("Slow query threshold must not be negative");
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Slow query log capacity must not be negative");
+        }
+        this.thresholdNanos = threshold.toNanos();
+        this.capacity = capacity;
+        this.redactParameters = redactParameters;
+        this.slowest = new PriorityQueue<>(Math.max(capacity, 1), BY_DURATION);
+    }
+
+    /**
+     * @return statements running at least this long are logged
+     */
+    public Duration threshold() {
+        return Duration.ofNanos(thresholdNanos);
+    }
+
+    /**
+     * @param nanos duration of a statement
+     * @return whether the statement is slow
+     */
+    public boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /**
+     * Log a slow statement and keep it if it is among the slowest ones.
+     *
+     * @param sql        SQL of the statement
+     * @param parameters values of its parameters
+     * @param nanos      duration of the statement
+     * @param queryPlan  lines of the query plan, nested steps are indented
+     */
+    public void record(String sql, List<Object> parameters, long nanos, List<String> queryPlan) {
+        List<Object> logged = redactParameters
+                ? parameters.stream().map(parameter -> (Object) REDACTED).toList()
+                : parameters.stream().toList();
+        SlowStatement statement = new SlowStatement(sql, logged, nanos, queryPlan, Instant.now());
+        LOGGER.log(Level.WARNING, statement::toString);
+        synchronized (this) {
+            count++;
+            if (capacity == 0) {
+                return;
+            }
+            if (slowest.size() < capacity) {
+                slowest.add(statement);
+            } else if (BY_DURATION.compare(statement, slowest.peek()) > 0) {
+                slowest.poll();
+                slowest.add(statement);
+            }
+        }
+    }
+
+    /**
+     * @return the slowest statements, the slowest first
+     */
+    public synchronized List<SlowStatement> slowest() {
+        return slowest.stream().sorted(BY_DURATION.reversed()).toList();
+    }
+
+    /**
+     * @return number of slow statements since the creation or {@link #clear()} of the log
+     */
+    public synchronized long count() {
+        return count;
+    }
+
+    /**
+     * Forget all kept statements.
+     */
+    public synchronized void clear() {
+        slowest.clear();
+        count = 0;
+    }
+
+    /**
+     * Statement which took longer than the threshold.
+     *
+     * @param sql           SQL of the statement
+     * @param parameters    values of its parameters, <code>?</code> if they are redacted
+     * @param durationNanos duration of the statement
+     * @param queryPlan     lines of the query plan, nested steps are indented
+     * @param executedAt    time when the statement finished
+     */
+    public record SlowStatement(String sql, List<Object> parameters, long durationNanos, List<String> queryPlan,
+                                Instant executedAt) {
+
+        /**
+         * @return duration of the statement
+         */
+        public Duration duration() {
+            return Duration.ofNanos(durationNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Slow statement (%.3f ms): %s%nParameters: %s%nQuery plan:%n%s",
+                    durationNanos / 1_000_000.0, sql, parameters,
+                    queryPlan.stream().map(line -> "  " + line).collect(Collectors.joining(System.lineSeparator())));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package sk.tuke.meta.persistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of an executed statement. The event of a query lasts
+ * until its result set is closed, so it includes fetching the rows.
+ */
+@Name("sk.tuke.meta.persistence.SqlExecute")
+@Label("SQL Execute")
+@Category("Persistence")
+@Description("Executing an SQL statement and fetching its rows")
+@StackTrace(false)
+final class SqlExecuteEvent extends jdk.jfr.Event {
+    @Label("SQL")
+    String sql;
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Row Count")
+    @Description("Number of fetched rows of a query, number of affected rows of other statements")
+    long rowCount;
+
+    /**
+     * End the event and commit it if it is enabled.
+     */
+    void complete(String sql, Class<?> entityClass, long rowCount) {
+        end();
+        if (shouldCommit()) {
+            this.sql = sql;
+            this.entityClass = entityClass;
+            this.rowCount = rowCount;
+            commit();
+        }
+    }
+}
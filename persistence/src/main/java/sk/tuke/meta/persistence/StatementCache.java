@@ -0,0 +1,242 @@
+package sk.tuke.meta.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of prepared statements of one connection.
+ * <p>
+ * Statements are keyed by entity class and operation, so the SQL of an operation is built
+ * and compiled only once. Statements of queries, whose SQL depends on their conditions,
+ * and of updates of changed columns only are keyed by the SQL. When the cache is full,
+ * the least recently used statement is closed. A statement is leased to one caller at a time,
+ * a nested request for a leased statement (e.g. loading an entity referencing its own type)
+ * gets a fresh statement closed after use.
+ */
+public final class StatementCache implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Operations whose statements are cached.
+     */
+    public enum Operation {
+        GET, GET_ALL, PAGE, PAGE_DESCENDING, INSERT, UPDATE, UPSERT, DELETE, DELETE_ALL, QUERY
+    }
+
+    private final Connection connection;
+    private final int capacity;
+    private final Map<Key, Entry> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private boolean recordParameters;
+
+    StatementCache(Connection connection, int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Statement cache capacity must not be negative");
+        }
+        this.connection = connection;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Lease the statement of an operation, preparing it on a cache miss.
+     *
+     * @param type      entity class
+     * @param operation operation on the entity
+     * @param sql       builds the SQL of the statement, called only on a miss
+     * @return lease which has to be closed after the statement and its result sets are no longer used
+     * @throws SQLException if preparing the statement fails
+     */
+    synchronized Lease acquire(Class<?> type, Operation operation, Supplier<String> sql) throws SQLException {
+        return acquire(new Key(type, operation, null), operation, sql);
+    }
+
+    /**
+     * Lease the statement of a query or another statement keyed by its SQL, preparing it on a cache miss.
+     *
+     * @param type entity class
+     * @param sql  SQL of the query
+     * @return lease which has to be closed after the statement and its result sets are no longer used
+     * @throws SQLException if preparing the statement fails
+     */
+    synchronized Lease acquire(Class<?> type, String sql) throws SQLException {
+        return acquire(new Key(type, Operation.QUERY, sql), Operation.QUERY, () -> sql);
+    }
+
+    // acquire
+    private Lease acquire(Key key, Operation operation, Supplier<String> sql) throws SQLException {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.leased) {
+            hits++;
+            entry.leased = true;
+            return new Lease(entry.statement, entry.sql, entry);
+        }
+        misses++;
+        String statementSql = sql.get();
+        PreparedStatement statement = prepare(operation, statementSql);
+        if (entry != null || capacity == 0) {
+            // The cached statement is in use, the new one is used only once
+            return new Lease(statement, statementSql, null);
+        }
+        entry = new Entry(statement, statementSql);
+        entry.leased = true;
+        entries.put(key, entry);
+        evictOverCapacity();
+        return new Lease(statement, statementSql, entry);
+    }
+
+    /**
+     * @return number of requests served by a cached statement
+     */
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    /**
+     * @return number of requests which had to prepare a statement
+     */
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    /**
+     * @return number of statements closed because the cache was full
+     */
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return number of cached statements
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Set whether statements remember their bound parameters, so they can be read by
+     * {@link BoundParameters#of}. Cached statements are closed when the setting changes.
+     *
+     * @param recordParameters whether statements prepared from now on remember their parameters
+     */
+    synchronized void setRecordParameters(boolean recordParameters) {
+        if (this.recordParameters != recordParameters) {
+            this.recordParameters = recordParameters;
+            close();
+        }
+    }
+
+    /**
+     * Close all cached statements. Statements leased at the moment are closed when released.
+     */
+    @Override
+    public synchronized void close() {
+        List<SQLException> failures = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            entry.evicted = true;
+            if (!entry.leased) {
+                closeQuietly(entry.statement, failures);
+            }
+        }
+        entries.clear();
+        if (!failures.isEmpty()) {
+            PersistenceException exception = new PersistenceException("Failed to close cached statements", failures.get(0));
+            failures.stream().skip(1).forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    private PreparedStatement prepare(Operation operation, String sql) throws SQLException {
+        PreparedStatement statement = operation == Operation.INSERT
+                ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sql);
+        return recordParameters ? BoundParameters.record(statement) : statement;
+    }
+
+    // Close least recently used statements which do not fit into the cache
+    private void evictOverCapacity() {
+        var iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            evictions++;
+            eldest.evicted = true;
+            if (!eldest.leased) {
+                closeQuietly(eldest.statement, null);
+            }
+        }
+    }
+
+    private synchronized void release(PreparedStatement statement, Entry entry) throws SQLException {
+        if (entry == null || entry.evicted) {
+            statement.close();
+        } else {
+            entry.leased = false;
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement, List<SQLException> failures) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            if (failures != null) {
+                failures.add(e);
+            }
+        }
+    }
+
+    private record Key(Class<?> type, Operation operation, String sql) {
+    }
+
+    private static final class Entry {
+        final PreparedStatement statement;
+        final String sql;
+        boolean leased;
+        boolean evicted;
+
+        Entry(PreparedStatement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * Statement leased from the cache.
+     */
+    final class Lease implements AutoCloseable {
+        private final PreparedStatement statement;
+        private final String sql;
+        private final Entry entry;
+
+        private Lease(PreparedStatement statement, String sql, Entry entry) {
+            this.statement = statement;
+            this.sql = sql;
+            this.entry = entry;
+        }
+
+        PreparedStatement statement() {
+            return statement;
+        }
+
+        /**
+         * @return SQL of the statement
+         */
+        String sql() {
+            return sql;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            release(statement, entry);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package sk.tuke.meta.persistence;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * PersistenceManager deferring writes to a background flusher which commits them in groups.
+ * <p>
+ * {@link #save}, {@link #saveAll}, {@link #upsert}, {@link #upsertAll} and {@link #delete}
+ * only enqueue the write and return.
+ * The flusher executes queued writes in submission order and commits them in one transaction
+ * once <code>maxBatchSize</code> writes were collected or <code>flushInterval</code> passed
+ * since the first of them, so the cost of a commit is shared by the whole group.
+ * Every write runs once, in its own savepoint of the group transaction, so a failing write
+ * is rolled back alone. If the commit of the group fails, all its writes fail.
+ * <p>
+ * Callers needing durability wait on the future returned by {@link #submitSave} or
+ * {@link #submitDelete}, which completes when the transaction containing the write commits,
+ * or call {@link #flush()}. When the queue is full, submitting blocks until the flusher catches up.
+ * <p>
+ * Reads are executed by the wrapped manager and see only committed writes. The wrapped manager
+ * must not be used directly while this manager is open, since the flusher uses its connection.
+ */
+public class WriteBehindPersistenceManager implements PersistenceManager {
+    private final ReflectivePersistenceManager manager;
+    private final int maxBatchSize;
+    private final long flushInterval;
+    private final BlockingQueue<Write> queue;
+    private final Object connectionLock = new Object();
+    // Submitting holds the read lock, closing takes the write lock, so no write is queued after the last one
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final Write last = new Write(() -> {
+    }, true);
+    private final Thread flusher;
+    private volatile boolean closed;
+    // Set when the flusher stops because of an unexpected exception, new writes are rejected then
+    private volatile Throwable flusherFailure;
+
+    /**
+     * @param manager       manager executing the writes and reads
+     * @param maxBatchSize  maximum number of writes committed in one transaction
+     * @param flushInterval maximum time a write waits for other writes to be committed with
+     * @param queueCapacity maximum number of writes waiting for the flusher
+     */
+    public WriteBehindPersistenceManager(ReflectivePersistenceManager manager, int maxBatchSize,
+                                         Duration flushInterval, int queueCapacity) {
+        if (maxBatchSize <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Batch size and queue capacity must be positive");
+        }
+        this.manager = manager;
+        this.maxBatchSize = maxBatchSize;
+        this.flushInterval = flushInterval.toNanos();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flusher = new Thread(this::runFlusher, "persistence-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Flushes pending writes and creates tables of the given entity classes.
+     */
+    @Override
+    public void createTables(Class<?>... types) {
+        flush();
+        synchronized (connectionLock) {
+            manager.createTables(types);
+        }
+    }
+
+    @Override
+    public <T> Optional<T> get(Class<T> type, long id) {
+        synchronized (connectionLock) {
+            return manager.get(type, id);
+        }
+    }
+
+    @Override
+    public <T> List<T> getAll(Class<T> type) {
+        synchronized (connectionLock) {
+            return manager.getAll(type);
+        }
+    }
+
+    @Override
+    public <T> List<T> getPage(Class<T> type, long afterId, int limit) {
+        synchronized (connectionLock) {
+            return manager.getPage(type, afterId, limit);
+        }
+    }
+
+    @Override
+    public <T> List<T> getPageDescending(Class<T> type, long beforeId, int limit) {
+        synchronized (connectionLock) {
+            return manager.getPageDescending(type, beforeId, limit);
+        }
+    }
+
+    @Override
+    public <T> List<T> find(Query<T> query) {
+        synchronized (connectionLock) {
+            return manager.find(query);
+        }
+    }
+
+    @Override
+    public long count(Query<?> query) {
+        synchronized (connectionLock) {
+            return manager.count(query);
+        }
+    }
+
+    /**
+     * Streams all entities of the specified type. The entities are read at once,
+     * since the connection cannot stay open for the stream while the flusher uses it.
+     */
+    @Override
+    public <T> Stream<T> stream(Class<T> type) {
+        return getAll(type).stream();
+    }
+
+    /**
+     * Enqueue saving an entity. A new entity gets its ID when the write is executed.
+     */
+    @Override
+    public <T> void save(T entity) {
+        submitSave(entity);
+    }
+
+    /**
+     * Enqueue saving entities as one write.
+     */
+    @Override
+    public <T> void saveAll(Collection<T> entities) {
+        List<T> copy = List.copyOf(entities);
+        submit(new Write(() -> manager.saveAll(copy), false));
+    }
+
+    /**
+     * Enqueue upserting an entity.
+     */
+    @Override
+    public <T> void upsert(T entity) {
+        submit(new Write(() -> manager.upsert(entity), false));
+    }
+
+    /**
+     * Enqueue upserting entities as one write.
+     */
+    @Override
+    public <T> void upsertAll(Collection<T> entities) {
+        List<T> copy = List.copyOf(entities);
+        submit(new Write(() -> manager.upsertAll(copy), false));
+    }
+
+    /**
+     * Enqueue deleting an entity.
+     */
+    @Override
+    public void delete(Object entity) {
+        submitDelete(entity);
+    }
+
+    /**
+     * Enqueue deleting entities by their IDs as one write and wait until it is committed,
+     * since the number of deleted entities is known only then.
+     */
+    @Override
+    public <T> long deleteAll(Class<T> type, long... ids) {
+        long[] copy = ids.clone();
+        long[] deleted = {0};
+        await(submit(new Write(() -> deleted[0] = manager.deleteAll(type, copy), true)));
+        return deleted[0];
+    }
+
+    /**
+     * Enqueue deleting entities satisfying a query as one write and wait until it is committed,
+     * since the number of deleted entities is known only then.
+     */
+    @Override
+    public long deleteWhere(Query<?> query) {
+        long[] deleted = {0};
+        await(submit(new Write(() -> deleted[0] = manager.deleteWhere(query), true)));
+        return deleted[0];
+    }
+
+    /**
+     * Enqueue saving an entity.
+     *
+     * @param entity the entity to save, it must not be modified until the future completes
+     * @return future completed when the transaction containing the write commits
+     */
+    public <T> CompletableFuture<Void> submitSave(T entity) {
+        return submit(new Write(() -> manager.save(entity), false));
+    }
+
+    /**
+     * Enqueue deleting an entity.
+     *
+     * @param entity the entity to delete
+     * @return future completed when the transaction containing the write commits
+     */
+    public CompletableFuture<Void> submitDelete(Object entity) {
+        return submit(new Write(() -> manager.delete(entity), false));
+    }
+
+    /**
+     * Commit all writes submitted so far and wait until they are committed.
+     *
+     * @throws PersistenceException if the commit of the last group fails
+     */
+    public void flush() {
+        await(submit(new Write(() -> {
+        }, true)));
+    }
+
+    /**
+     * Explicit transactions are not supported, since writes are committed by the flusher.
+     *
+     * @throws PersistenceException always
+     */
+    @Override
+    public void begin() {
+        throw new PersistenceException("Write-behind manager does not support begin, use inTransaction");
+    }
+
+    /**
+     * @throws PersistenceException always
+     */
+    @Override
+    public void commit() {
+        throw new PersistenceException("Write-behind manager does not support commit, use inTransaction");
+    }
+
+    /**
+     * @throws PersistenceException always
+     */
+    @Override
+    public void rollback() {
+        throw new PersistenceException("Write-behind manager does not support rollback, use inTransaction");
+    }
+
+    /**
+     * Enqueue the work as one write and wait until it is committed. The work receives
+     * the wrapped manager and runs on the flusher thread in a savepoint of the group transaction.
+     */
+    @Override
+    public void inTransaction(Consumer<PersistenceManager> work) {
+        await(submit(new Write(() -> manager.inTransaction(work), true)));
+    }
+
+    /**
+     * @return number of writes waiting for the flusher
+     */
+    public int pendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Reject new writes, commit pending ones, stop the flusher and close the wrapped manager.
+     *
+     * @throws PersistenceException if the commit of the last group fails
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            // The flusher stops after committing the group of the last write, which follows all accepted ones
+            enqueue(last);
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while flushing pending writes", e);
+        } finally {
+            manager.close();
+        }
+        failQueued(); // Left only if the flusher failed
+        await(last.committed);
+    }
+
+    // save saveAll upsert upsertAll delete deleteAll deleteWhere submitSave submitDelete flush
+    private CompletableFuture<Void> submit(Write write) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new PersistenceException("Write-behind manager is closed");
+            }
+            if (flusherFailure != null) {
+                throw new PersistenceException("Write-behind flusher failed", flusherFailure);
+            }
+            enqueue(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for space in the write queue", e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return write.committed;
+    }
+
+    // close submit
+    private void enqueue(Write write) throws InterruptedException {
+        queue.put(write); // Blocks while the queue is full.
+    }
+
+    // flush deleteAll deleteWhere inTransaction
+    private void await(CompletableFuture<Void> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for the commit", e);
+        } catch (ExecutionException e) {
+            throw new PersistenceException("Committing pending writes failed", e.getCause());
+        }
+    }
+
+    // constructor
+    private void runFlusher() {
+        List<Write> group = new ArrayList<>();
+        try {
+            while (group.isEmpty() || group.get(group.size() - 1) != last) {
+                group.clear();
+                try {
+                    group.add(queue.take());
+                    long deadline = System.nanoTime() + flushInterval;
+                    // Collect writes until the group is full, a flush is requested or the interval passes
+                    while (group.size() < maxBatchSize && !group.get(group.size() - 1).flush) {
+                        Write next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        group.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    if (group.isEmpty()) {
+                        continue; // Only close stops the flusher, after all pending writes.
+                    }
+                }
+                commit(group);
+            }
+        } catch (RuntimeException | Error e) {
+            flusherFailure = e;
+            for (Write write : group) {
+                write.committed.completeExceptionally(new PersistenceException("Write-behind flusher failed", e));
+            }
+            // Submitters blocked on the full queue hold the read lock, the queue is drained until they are gone
+            while (!closeLock.writeLock().tryLock()) {
+                failQueued();
+                Thread.yield();
+            }
+            try {
+                failQueued();
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    // runFlusher close, the writes are never executed
+    private void failQueued() {
+        Write write;
+        while ((write = queue.poll()) != null) {
+            write.committed.completeExceptionally(new PersistenceException("Write-behind flusher failed",
+                    flusherFailure));
+        }
+    }
+
+    /**
+     * Executes a group of writes in one transaction and completes their futures.
+     * Every write runs once, in its own savepoint, so a failing write is rolled back
+     * to its savepoint, which resets IDs assigned to new entities, and the others
+     * are committed without it.
+     *
+     * @param group writes in submission order
+     */
+    // runFlusher
+    private void commit(List<Write> group) {
+        Map<Write, RuntimeException> failures = new HashMap<>();
+        RuntimeException groupFailure = null;
+        synchronized (connectionLock) {
+            try {
+                manager.inTransaction(ignored -> {
+                    for (Write write : group) {
+                        try {
+                            manager.inTransaction(savepoint -> write.action.run());
+                        } catch (RuntimeException writeFailure) {
+                            failures.put(write, writeFailure);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                groupFailure = e; // The commit failed, the group was rolled back.
+            }
+        }
+        for (Write write : group) {
+            if (groupFailure != null) {
+                write.committed.completeExceptionally(
+                        new PersistenceException("Group commit of " + group.size() + " writes failed", groupFailure));
+            } else if (failures.containsKey(write)) {
+                write.committed.completeExceptionally(new PersistenceException("Write failed", failures.get(write)));
+            } else {
+                write.committed.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Queued write with the future completed by the commit of its group.
+     */
+    private record Write(Runnable action, boolean flush, CompletableFuture<Void> committed) {
+        Write(Runnable action, boolean flush) {
+            this(action, flush, new CompletableFuture<>());
+        }
+    }
+}
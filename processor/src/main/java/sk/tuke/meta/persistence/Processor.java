@@ -2,6 +2,8 @@ package sk.tuke.meta.persistence;
 
 import sk.tuke.meta.persistence.annotations.Column;
 import sk.tuke.meta.persistence.annotations.Id;
+import sk.tuke.meta.persistence.annotations.Index;
+import sk.tuke.meta.persistence.annotations.Indexes;
 import sk.tuke.meta.persistence.annotations.Table;
 
 import javax.annotation.processing.AbstractProcessor;
@@ -10,19 +12,37 @@ import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
 import javax.tools.StandardLocation;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class Processor extends AbstractProcessor {
+    private static final String MAPPER_SUFFIX = "_Mapper";
+    private static final String CATALOG_NAME = "GeneratedSchemaCatalog";
+
     private Types typeUtils;
     private Elements elementUtils;
+    private boolean catalogWritten;
 
     @Override
     public void init(ProcessingEnvironment processingEnv) {
@@ -33,83 +53,641 @@ public class Processor extends AbstractProcessor {
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        List<CatalogEntry> roundEntries = new ArrayList<>();
         for (Element element : roundEnv.getElementsAnnotatedWith(Table.class)) {
             TypeElement typeElement = (TypeElement) element;
-            Table tableAnnotation = element.getAnnotation(Table.class);
 
-            StringBuilder queryBuilder = new StringBuilder();
+            List<VariableElement> fields = getPersistentFields(typeElement);
+            VariableElement idField = getIdField(fields);
+            if (idField == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Entity " + typeElement.getSimpleName() + " does not have an id field", typeElement);
+                continue;
+            }
 
-            // Start building the query
-            queryBuilder.append("CREATE TABLE IF NOT EXISTS ")
-                    .append(getTableName(tableAnnotation, typeElement)) // Pass typeElement
-                    .append(" (");
+            String createTableQuery = buildCreateTableQuery(typeElement, idField, fields);
+            List<String> indexQueries = buildCreateIndexQueries(typeElement, idField, fields);
+            if (indexQueries == null) {
+                continue;
+            }
+            roundEntries.add(new CatalogEntry(typeElement, getTableName(typeElement), createTableQuery,
+                    indexQueries, getReferencedTypes(fields)));
 
-            for (Element enclosedElement : typeElement.getEnclosedElements()) {
-                Column columnAnnotation = enclosedElement.getAnnotation(Column.class);
+            // Generate the mapper, entities which cannot be mapped without reflection are left to the reflective manager
+            String problem = getMapperProblem(typeElement, idField, fields);
+            if (problem == null) {
+                writeMapper(typeElement, idField, fields, createTableQuery, indexQueries);
+            } else {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "No mapper generated for " + typeElement.getSimpleName() + ": " + problem, typeElement);
+            }
+        }
 
-                if (columnAnnotation != null) {
-                    TypeMirror fieldType = enclosedElement.asType();
+        // Generate the catalog in the round the entities were found, so it is compiled with them
+        if (!roundEntries.isEmpty()) {
+            if (catalogWritten) {
+                for (CatalogEntry entry : roundEntries) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                            "Entity " + entry.type().getSimpleName() + " was generated by another processor"
+                                    + " and is missing in the schema catalog", entry.type());
+                }
+            } else {
+                writeCatalog(sortByDependencies(roundEntries));
+                catalogWritten = true;
+            }
+        }
 
-                    queryBuilder.append(enclosedElement.getSimpleName()).append(" ");
-                    queryBuilder.append(javaTypeToSQLType(fieldType)).append(", ");
+        return true;
+    }
 
-                    if (enclosedElement.getAnnotation(Id.class) != null) {
-                        queryBuilder.append(" PRIMARY KEY AUTOINCREMENT, ");
-                    } else if (columnAnnotation.unique()) {
-                        queryBuilder.append(" UNIQUE, ");
-                    }
-                    if (!columnAnnotation.nullable()) {
-                        queryBuilder.append(" NOT NULL, ");
-                    }
-                }
+    // Helper method to build the CREATE TABLE query of an entity
+    private String buildCreateTableQuery(TypeElement typeElement, VariableElement idField, List<VariableElement> fields) {
+        StringBuilder queryBuilder = new StringBuilder();
+        List<String> foreignKeys = new ArrayList<>();
+
+        // Start building the query
+        queryBuilder.append("CREATE TABLE IF NOT EXISTS \"")
+                .append(getTableName(typeElement))
+                .append("\" (\"").append(getColumnName(idField)).append("\" INTEGER PRIMARY KEY AUTOINCREMENT");
+
+        for (VariableElement field : fields) {
+            if (field == idField) {
+                continue;
             }
+            TypeMirror fieldType = field.asType();
+            Column columnAnnotation = field.getAnnotation(Column.class);
 
-            // Remove trailing comma, close the statement
-            if (queryBuilder.lastIndexOf(", ") > 0) {
-                queryBuilder.delete(queryBuilder.length() - 2, queryBuilder.length());
+            queryBuilder.append(", \"").append(getColumnName(field)).append("\" ");
+            if (isReference(fieldType)) {
+                TypeElement referenced = (TypeElement) typeUtils.asElement(referencedType(fieldType));
+                queryBuilder.append("INTEGER");
+                foreignKeys.add("FOREIGN KEY (\"" + getColumnName(field) + "\") REFERENCES \""
+                        + getTableName(referenced) + "\"(\"" + getIdColumnName(referenced) + "\")");
+            } else {
+                queryBuilder.append(javaTypeToSQLType(fieldType));
             }
-            queryBuilder.append(");");
 
-            // Write the query to data.sql
-            writeSQLToFile(this.processingEnv.getFiler(), queryBuilder.toString());
+            if (columnAnnotation != null && !columnAnnotation.nullable()) {
+                queryBuilder.append(" NOT NULL");
+            }
+            if (columnAnnotation != null && columnAnnotation.unique()) {
+                queryBuilder.append(" UNIQUE");
+            }
         }
 
-        return true;
+        for (String foreignKey : foreignKeys) {
+            queryBuilder.append(", ").append(foreignKey);
+        }
+        queryBuilder.append(")");
+        return queryBuilder.toString();
+    }
+
+    // Helper method to build the CREATE INDEX queries of declared indexes and reference columns, null on error
+    private List<String> buildCreateIndexQueries(TypeElement typeElement, VariableElement idField,
+                                                 List<VariableElement> fields) {
+        List<String> columnNames = new ArrayList<>();
+        for (VariableElement field : fields) {
+            columnNames.add(getColumnName(field));
+        }
+        List<String> queries = new ArrayList<>();
+        List<String> leadingColumns = new ArrayList<>();
+        List<List<String>> indexColumns = new ArrayList<>();
+        List<Index> indexes = new ArrayList<>();
+        for (Index index : typeElement.getAnnotationsByType(Index.class)) {
+            indexes.add(index);
+            indexColumns.add(List.of(index.columns()));
+        }
+        for (VariableElement field : fields) {
+            for (Index index : field.getAnnotationsByType(Index.class)) {
+                // A field index starts with the column of the field
+                List<String> columns = new ArrayList<>();
+                columns.add(getColumnName(field));
+                columns.addAll(List.of(index.columns()));
+                indexes.add(index);
+                indexColumns.add(columns);
+            }
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+            List<String> columns = indexColumns.get(i);
+            if (columns.isEmpty() || !columnNames.containsAll(columns)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Index of entity "
+                        + typeElement.getSimpleName() + " must refer to existing columns: " + columns, typeElement);
+                return null;
+            }
+            queries.add(buildCreateIndexQuery(typeElement, indexes.get(i).name(), columns, indexes.get(i).unique()));
+            leadingColumns.add(columns.get(0));
+        }
+        for (VariableElement field : fields) {
+            if (field != idField && isReference(field.asType()) && !leadingColumns.contains(getColumnName(field))) {
+                queries.add(buildCreateIndexQuery(typeElement, "", List.of(getColumnName(field)), false));
+            }
+        }
+        return queries;
+    }
+
+    private String buildCreateIndexQuery(TypeElement typeElement, String name, List<String> columns, boolean unique) {
+        String tableName = getTableName(typeElement);
+        String indexName = name.isEmpty() ? "idx_" + tableName + "_" + String.join("_", columns) : name;
+        return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX IF NOT EXISTS \"" + indexName + "\" ON \""
+                + tableName + "\" (\"" + String.join("\", \"", columns) + "\")";
     }
 
     // Helper method to convert Java types to SQL types
     private String javaTypeToSQLType(TypeMirror typeMirror) {
-        if (typeUtils.isSameType(typeMirror, typeUtils.getPrimitiveType(TypeKind.INT))) {
-            return "INTEGER";
-        } else if (typeUtils.isSameType(typeMirror, typeUtils.getPrimitiveType(TypeKind.FLOAT))) {
-            return "REAL";
-        } else if (typeUtils.isSameType(typeMirror, typeUtils.getPrimitiveType(TypeKind.DOUBLE))) {
-            return "REAL";
-        } else if (typeUtils.isSameType(typeMirror, typeUtils.getDeclaredType(elementUtils.getTypeElement("java.lang.String")))) {
-            return "TEXT";
-        } else {
-            return "TEXT";
+        switch (unboxed(typeMirror).getKind()) {
+            case INT:
+            case LONG:
+            case SHORT:
+            case BYTE:
+            case BOOLEAN:
+                return "INTEGER";
+            case FLOAT:
+            case DOUBLE:
+                return "REAL";
+            default:
+                return "TEXT";
         }
     }
 
     // Helper method to get the table name (use class name if Table annotation name is empty)
-    private String getTableName(Table tableAnnotation, TypeElement typeElement) { // Accept typeElement
-        return tableAnnotation.name().isEmpty() ? typeElement.getSimpleName().toString() : tableAnnotation.name();
+    private String getTableName(TypeElement typeElement) {
+        Table tableAnnotation = typeElement.getAnnotation(Table.class);
+        return tableAnnotation == null || tableAnnotation.name().isEmpty()
+                ? typeElement.getSimpleName().toString() : tableAnnotation.name();
+    }
+
+    // Helper method to get the column name (use field name if Column annotation name is empty)
+    private String getColumnName(VariableElement field) {
+        Column columnAnnotation = field.getAnnotation(Column.class);
+        return columnAnnotation == null || columnAnnotation.name().isEmpty()
+                ? field.getSimpleName().toString() : columnAnnotation.name();
+    }
+
+    // Helper method to get the id column name of a referenced entity, id if it has no id field
+    private String getIdColumnName(TypeElement typeElement) {
+        VariableElement idField = getIdField(getPersistentFields(typeElement));
+        return idField == null ? "id" : getColumnName(idField);
+    }
+
+    // Helper method to get all fields stored in the table (not static, transient or collections)
+    private List<VariableElement> getPersistentFields(TypeElement typeElement) {
+        List<VariableElement> fields = new ArrayList<>();
+        TypeMirror collectionType = typeUtils.erasure(elementUtils.getTypeElement("java.util.Collection").asType());
+        for (VariableElement field : ElementFilter.fieldsIn(typeElement.getEnclosedElements())) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)
+                    && !typeUtils.isAssignable(typeUtils.erasure(field.asType()), collectionType)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    // Helper method to find the primary key field (annotated with Id or named id)
+    private VariableElement getIdField(List<VariableElement> fields) {
+        for (VariableElement field : fields) {
+            if (field.getAnnotation(Id.class) != null || field.getSimpleName().contentEquals("id")) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    // Helper method to get qualified names of entities referenced by the fields
+    private List<String> getReferencedTypes(List<VariableElement> fields) {
+        List<String> references = new ArrayList<>();
+        for (VariableElement field : fields) {
+            if (isReference(field.asType())
+                    && typeUtils.asElement(referencedType(field.asType())) instanceof TypeElement referenced) {
+                references.add(referenced.getQualifiedName().toString());
+            }
+        }
+        return references;
+    }
+
+    // Helper method to order entities so referenced entities precede the entities referencing them
+    private List<CatalogEntry> sortByDependencies(List<CatalogEntry> entries) {
+        Map<String, CatalogEntry> byName = new TreeMap<>();
+        for (CatalogEntry entry : entries) {
+            byName.put(entry.type().getQualifiedName().toString(), entry);
+        }
+        Set<String> visited = new HashSet<>();
+        List<CatalogEntry> sorted = new ArrayList<>();
+        for (String name : byName.keySet()) {
+            visitDependencies(name, byName, visited, sorted);
+        }
+        return sorted;
+    }
+
+    // sortByDependencies, depth-first so references are added first, cycles are broken at the first visited entity
+    private void visitDependencies(String name, Map<String, CatalogEntry> byName, Set<String> visited,
+                                   List<CatalogEntry> sorted) {
+        CatalogEntry entry = byName.get(name);
+        if (entry == null || !visited.add(name)) {
+            return;
+        }
+        for (String reference : entry.references()) {
+            visitDependencies(reference, byName, visited, sorted);
+        }
+        sorted.add(entry);
+    }
+
+    // Helper method to check whether a field references another entity
+    private boolean isReference(TypeMirror typeMirror) {
+        return typeMirror.getKind() == TypeKind.DECLARED && !isString(typeMirror)
+                && !unboxed(typeMirror).getKind().isPrimitive();
+    }
+
+    // Helper method to check whether a field is a lazily loaded Ref
+    private boolean isLazyReference(TypeMirror typeMirror) {
+        return typeMirror.getKind() == TypeKind.DECLARED && typeUtils.isSameType(typeUtils.erasure(typeMirror),
+                typeUtils.erasure(elementUtils.getTypeElement(Ref.class.getCanonicalName()).asType()));
+    }
+
+    // Helper method to get the referenced entity type, which is the type argument of a Ref
+    private TypeMirror referencedType(TypeMirror typeMirror) {
+        if (isLazyReference(typeMirror)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) typeMirror).getTypeArguments();
+            return arguments.isEmpty() ? typeMirror : arguments.get(0);
+        }
+        return typeMirror;
+    }
+
+    private boolean isString(TypeMirror typeMirror) {
+        return typeUtils.isSameType(typeMirror, elementUtils.getTypeElement("java.lang.String").asType());
+    }
+
+    // Helper method to get the primitive type of a wrapper type, other types are returned unchanged
+    private TypeMirror unboxed(TypeMirror typeMirror) {
+        try {
+            return typeUtils.unboxedType(typeMirror);
+        } catch (IllegalArgumentException e) {
+            return typeMirror;
+        }
+    }
+
+    // Helper method returning the reason why a mapper cannot be generated, or null if it can
+    private String getMapperProblem(TypeElement typeElement, VariableElement idField, List<VariableElement> fields) {
+        if (typeElement.getNestingKind() != NestingKind.TOP_LEVEL || typeElement.getKind() != ElementKind.CLASS) {
+            return "only top level classes are supported";
+        }
+        if (typeElement.getModifiers().contains(Modifier.ABSTRACT)) {
+            return "abstract classes cannot be instantiated";
+        }
+        boolean hasConstructor = false;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                hasConstructor = true;
+            }
+        }
+        if (!hasConstructor) {
+            return "no accessible constructor without parameters";
+        }
+        TypeKind idKind = idField.asType().getKind();
+        if (idKind != TypeKind.LONG && idKind != TypeKind.INT) {
+            return "id field must be long or int";
+        }
+        for (VariableElement field : fields) {
+            TypeMirror fieldType = field.asType();
+            if (field.getModifiers().contains(Modifier.FINAL)) {
+                return "field " + field.getSimpleName() + " is final";
+            }
+            if (fieldType.getKind() == TypeKind.ARRAY || fieldType.getKind() == TypeKind.CHAR
+                    || (fieldType.getKind() == TypeKind.DECLARED
+                    && typeUtils.asElement(fieldType).getKind() != ElementKind.CLASS)) {
+                return "field " + field.getSimpleName() + " has unsupported type " + fieldType;
+            }
+            if (isLazyReference(fieldType) && referencedType(fieldType).getKind() != TypeKind.DECLARED) {
+                return "field " + field.getSimpleName() + " must be a Ref of an entity class";
+            }
+        }
+        return null;
+    }
+
+    // Helper method to write the generated mapper source
+    private void writeMapper(TypeElement typeElement, VariableElement idField, List<VariableElement> fields,
+                             String createTableQuery, List<String> indexQueries) {
+        String packageName = elementUtils.getPackageOf(typeElement).getQualifiedName().toString();
+        String entityName = typeElement.getQualifiedName().toString();
+        String mapperName = typeElement.getSimpleName() + MAPPER_SUFFIX;
+
+        List<VariableElement> columns = new ArrayList<>(fields);
+        columns.remove(idField);
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import java.lang.invoke.MethodHandles;\n")
+                .append("import java.lang.invoke.VarHandle;\n")
+                .append("import java.sql.PreparedStatement;\n")
+                .append("import java.sql.ResultSet;\n")
+                .append("import java.sql.SQLException;\n")
+                .append("import java.sql.Types;\n")
+                .append("import java.util.List;\n")
+                .append("import java.util.Map;\n")
+                .append("import java.util.Set;\n\n")
+                .append("/**\n * Mapper of {@link ").append(entityName).append("} generated by {@link ")
+                .append(getClass().getName()).append("}.\n */\n")
+                .append("public final class ").append(mapperName)
+                .append(" implements sk.tuke.meta.persistence.EntityMapper<").append(entityName).append("> {\n");
+
+        // Column names and var handles of private fields
+        source.append("    private static final List<String> COLUMNS = List.of(");
+        for (int i = 0; i < columns.size(); i++) {
+            source.append(i > 0 ? ", " : "").append(stringLiteral(getColumnName(columns.get(i))));
+        }
+        source.append(");\n");
+        // Map.of takes at most 10 entries
+        source.append("    private static final Map<String, Class<?>> REFERENCES = Map.ofEntries(");
+        boolean firstReference = true;
+        for (VariableElement field : columns) {
+            if (isReference(field.asType())) {
+                source.append(firstReference ? "" : ",\n            ").append("Map.entry(")
+                        .append(stringLiteral(getColumnName(field))).append(", ")
+                        .append(typeUtils.erasure(referencedType(field.asType()))).append(".class)");
+                firstReference = false;
+            }
+        }
+        source.append(");\n");
+        source.append("    private static final List<String> INDEXES = List.of(");
+        for (int i = 0; i < indexQueries.size(); i++) {
+            source.append(i > 0 ? ",\n            " : "").append(stringLiteral(indexQueries.get(i)));
+        }
+        source.append(");\n");
+        source.append("    private static final Set<String> LAZY_REFERENCES = Set.of(");
+        boolean firstLazyReference = true;
+        for (VariableElement field : columns) {
+            if (isLazyReference(field.asType())) {
+                source.append(firstLazyReference ? "" : ", ").append(stringLiteral(getColumnName(field)));
+                firstLazyReference = false;
+            }
+        }
+        source.append(");\n");
+        List<VariableElement> privateFields = new ArrayList<>();
+        for (VariableElement field : fields) {
+            if (field.getModifiers().contains(Modifier.PRIVATE)) {
+                privateFields.add(field);
+                source.append("    private static final VarHandle ").append(handleName(field)).append(";\n");
+            }
+        }
+        if (!privateFields.isEmpty()) {
+            source.append("\n    static {\n        try {\n")
+                    .append("            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(")
+                    .append(entityName).append(".class, MethodHandles.lookup());\n");
+            for (VariableElement field : privateFields) {
+                source.append("            ").append(handleName(field)).append(" = lookup.findVarHandle(")
+                        .append(entityName).append(".class, \"").append(field.getSimpleName()).append("\", ")
+                        .append(typeUtils.erasure(field.asType())).append(".class);\n");
+            }
+            source.append("        } catch (ReflectiveOperationException e) {\n")
+                    .append("            throw new ExceptionInInitializerError(e);\n")
+                    .append("        }\n    }\n");
+        }
+
+        // Table description
+        source.append("\n    @Override\n    public Class<").append(entityName).append("> type() {\n")
+                .append("        return ").append(entityName).append(".class;\n    }\n")
+                .append("\n    @Override\n    public String tableName() {\n")
+                .append("        return ").append(stringLiteral(getTableName(typeElement))).append(";\n    }\n")
+                .append("\n    @Override\n    public String idColumn() {\n")
+                .append("        return ").append(stringLiteral(getColumnName(idField))).append(";\n    }\n")
+                .append("\n    @Override\n    public List<String> columns() {\n")
+                .append("        return COLUMNS;\n    }\n")
+                .append("\n    @Override\n    public Map<String, Class<?>> references() {\n")
+                .append("        return REFERENCES;\n    }\n")
+                .append("\n    @Override\n    public Set<String> lazyReferences() {\n")
+                .append("        return LAZY_REFERENCES;\n    }\n")
+                .append("\n    @Override\n    public String createTableSql() {\n")
+                .append("        return ").append(stringLiteral(createTableQuery)).append(";\n    }\n")
+                .append("\n    @Override\n    public List<String> createIndexSql() {\n")
+                .append("        return INDEXES;\n    }\n");
+
+        // Id accessors
+        source.append("\n    @Override\n    public long getId(").append(entityName).append(" entity) {\n")
+                .append("        return ").append(readField(idField)).append(";\n    }\n")
+                .append("\n    @Override\n    public void setId(").append(entityName).append(" entity, long id) {\n")
+                .append("        ").append(writeField(idField, idValue(idField, "id"))).append(";\n    }\n");
+
+        // Row to object
+        source.append("\n    @Override\n    public ").append(entityName)
+                .append(" read(ResultSet rs, Context context) throws SQLException {\n")
+                .append("        ").append(entityName).append(" entity = new ").append(entityName).append("();\n")
+                .append("        ").append(writeField(idField, idValue(idField, "rs.getLong(1)"))).append(";\n");
+        for (int i = 0; i < columns.size(); i++) {
+            VariableElement field = columns.get(i);
+            TypeMirror fieldType = field.asType();
+            int index = i + 2;
+            String local = "v" + index;
+            if (isReference(fieldType)) {
+                // Ref fields get a reference loaded on first access, other references are loaded now
+                String load = isLazyReference(fieldType) ? "context.reference(" : "context.load(";
+                source.append("        long ").append(local).append(" = rs.getLong(").append(index).append(");\n")
+                        .append("        if (").append(local).append(" > 0) {\n")
+                        .append("            ").append(writeField(field, load
+                                + typeUtils.erasure(referencedType(fieldType)) + ".class, " + local + ")")).append(";\n")
+                        .append("        }\n");
+            } else if (fieldType.getKind().isPrimitive()) {
+                source.append("        ").append(writeField(field,
+                        "rs.get" + jdbcTypeName(fieldType) + "(" + index + ")")).append(";\n");
+            } else if (isString(fieldType)) {
+                source.append("        ").append(writeField(field, "rs.getString(" + index + ")")).append(";\n");
+            } else {
+                // Wrapper types keep SQL NULL as null
+                TypeMirror primitive = unboxed(fieldType);
+                source.append("        ").append(primitive).append(" ").append(local).append(" = rs.get")
+                        .append(jdbcTypeName(primitive)).append("(").append(index).append(");\n")
+                        .append("        ").append(writeField(field, "rs.wasNull() ? null : " + local)).append(";\n");
+            }
+        }
+        source.append("        return entity;\n    }\n");
+
+        // Object to parameters
+        source.append("\n    @Override\n    public void bind(").append(entityName)
+                .append(" entity, PreparedStatement statement, Context context) throws SQLException {\n");
+        for (int i = 0; i < columns.size(); i++) {
+            VariableElement field = columns.get(i);
+            TypeMirror fieldType = field.asType();
+            int index = i + 1;
+            String local = "v" + index;
+            if (isReference(fieldType)) {
+                source.append("        ").append(sourceType(field)).append(" ").append(local).append(" = ").append(readField(field)).append(";\n")
+                        .append("        if (").append(local).append(" == null) {\n")
+                        .append("            statement.setNull(").append(index).append(", Types.INTEGER);\n")
+                        .append("        } else {\n")
+                        .append("            statement.setLong(").append(index).append(", context.idOf(")
+                        .append(local).append("));\n")
+                        .append("        }\n");
+            } else if (fieldType.getKind().isPrimitive()) {
+                source.append("        statement.set").append(jdbcTypeName(fieldType)).append("(").append(index)
+                        .append(", ").append(readField(field)).append(");\n");
+            } else if (isString(fieldType)) {
+                source.append("        statement.setString(").append(index).append(", ")
+                        .append(readField(field)).append(");\n");
+            } else {
+                source.append("        statement.setObject(").append(index).append(", ")
+                        .append(readField(field)).append(");\n");
+            }
+        }
+        source.append("    }\n");
+
+        // Object to column values, the same values bind binds
+        source.append("\n    @Override\n    public Object[] values(").append(entityName)
+                .append(" entity, Context context) {\n");
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            VariableElement field = columns.get(i);
+            if (isReference(field.asType())) {
+                String local = "v" + (i + 1);
+                source.append("        ").append(sourceType(field)).append(" ").append(local)
+                        .append(" = ").append(readField(field)).append(";\n");
+                values.add(local + " == null ? null : context.idOf(" + local + ")");
+            } else {
+                values.add(readField(field));
+            }
+        }
+        source.append("        return new Object[]{").append(String.join(",\n                ", values)).append("};\n    }\n");
+
+        // Column values to object
+        source.append("\n    @Override\n    public ").append(entityName)
+                .append(" create(long id, Object[] values, Context context) {\n")
+                .append("        ").append(entityName).append(" entity = new ").append(entityName).append("();\n")
+                .append("        ").append(writeField(idField, idValue(idField, "id"))).append(";\n");
+        for (int i = 0; i < columns.size(); i++) {
+            VariableElement field = columns.get(i);
+            TypeMirror fieldType = field.asType();
+            String value = "values[" + i + "]";
+            if (isReference(fieldType)) {
+                String load = isLazyReference(fieldType) ? "context.reference(" : "context.load(";
+                source.append("        if (").append(value).append(" != null) {\n")
+                        .append("            ").append(writeField(field, load
+                                + typeUtils.erasure(referencedType(fieldType)) + ".class, (long) " + value + ")"))
+                        .append(";\n")
+                        .append("        }\n");
+            } else {
+                source.append("        ").append(writeField(field, "(" + fieldType + ") " + value)).append(";\n");
+            }
+        }
+        source.append("        return entity;\n    }\n}\n");
+
+        try (PrintWriter writer = new PrintWriter(this.processingEnv.getFiler()
+                .createSourceFile(entityName + MAPPER_SUFFIX, typeElement).openWriter())) {
+            writer.print(source);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Error writing mapper of " + typeElement.getSimpleName() + ": " + e.getMessage(), typeElement);
+        }
+    }
+
+    // Helper method to build an expression reading a field of the entity
+    private String readField(VariableElement field) {
+        if (field.getModifiers().contains(Modifier.PRIVATE)) {
+            return "(" + sourceType(field) + ") " + handleName(field) + ".get(entity)";
+        }
+        return "entity." + field.getSimpleName();
+    }
+
+    // Helper method to get the type of a field as written in the source, e.g. Ref<Department> rather than raw Ref
+    private String sourceType(VariableElement field) {
+        TypeMirror type = field.asType();
+        return (type.getKind() == TypeKind.DECLARED ? type : typeUtils.erasure(type)).toString();
+    }
+
+    // Helper method to build a statement writing a field of the entity
+    private String writeField(VariableElement field, String value) {
+        if (field.getModifiers().contains(Modifier.PRIVATE)) {
+            return handleName(field) + ".set(entity, " + value + ")";
+        }
+        return "entity." + field.getSimpleName() + " = " + value;
+    }
+
+    // Helper method to narrow a long id to the type of the id field, the value has to match the field exactly
+    private String idValue(VariableElement idField, String value) {
+        return idField.asType().getKind() == TypeKind.INT ? "(int) " + value : value;
+    }
+
+    private String handleName(VariableElement field) {
+        return field.getSimpleName().toString().toUpperCase(Locale.ROOT) + "_FIELD";
+    }
+
+    // Helper method to get the name used in ResultSet getters and PreparedStatement setters, e.g. Int for int
+    private String jdbcTypeName(TypeMirror primitive) {
+        String name = primitive.getKind().name().toLowerCase(Locale.ROOT);
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
     }
 
-    // Helper method to write SQL to file
-    private void writeSQLToFile(Filer filer, String sqlQuery) {
-        try (PrintWriter writer = new PrintWriter(filer.createResource(StandardLocation.CLASS_OUTPUT, "", "data.sql").openWriter())) {
-            writer.println(sqlQuery);
+    private String stringLiteral(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    // Helper method to write the schema catalog source and register it as a service
+    private void writeCatalog(List<CatalogEntry> entries) {
+        String packageName = elementUtils.getPackageOf(entries.get(0).type()).getQualifiedName().toString();
+        String catalogName = packageName.isEmpty() ? CATALOG_NAME : packageName + "." + CATALOG_NAME;
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import sk.tuke.meta.persistence.SchemaCatalog;\n\n")
+                .append("import java.util.List;\n\n")
+                .append("/**\n * Schema catalog of all entities generated by {@link ")
+                .append(getClass().getName()).append("}.\n */\n")
+                .append("public final class ").append(CATALOG_NAME).append(" implements SchemaCatalog {\n")
+                .append("    private static final List<TableDefinition> TABLES = List.of(");
+        boolean first = true;
+        for (CatalogEntry entry : entries) {
+            // The catalog can refer only to entities accessible from its package
+            if (!entry.type().getModifiers().contains(Modifier.PUBLIC)
+                    && !elementUtils.getPackageOf(entry.type()).getQualifiedName().contentEquals(packageName)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Entity "
+                        + entry.type().getSimpleName() + " is not accessible from " + catalogName
+                        + " and is missing in the schema catalog", entry.type());
+                continue;
+            }
+            source.append(first ? "\n" : ",\n").append("            new TableDefinition(")
+                    .append(entry.type().getQualifiedName()).append(".class, ")
+                    .append(stringLiteral(entry.tableName())).append(", ")
+                    .append(stringLiteral(entry.createTableQuery())).append(", List.of(");
+            for (int i = 0; i < entry.indexQueries().size(); i++) {
+                source.append(i > 0 ? ", " : "").append(stringLiteral(entry.indexQueries().get(i)));
+            }
+            source.append("))");
+            first = false;
+        }
+        source.append(");\n\n")
+                .append("    @Override\n    public List<TableDefinition> tables() {\n        return TABLES;\n    }\n")
+                .append("}\n");
+
+        Filer filer = processingEnv.getFiler();
+        try (PrintWriter writer = new PrintWriter(filer.createSourceFile(catalogName, entries.stream()
+                .map(CatalogEntry::type).toArray(Element[]::new)).openWriter())) {
+            writer.print(source);
         } catch (IOException e) {
-            // Improve error reporting here as needed.
-            System.out.println("Error writing data.sql: " + e.getMessage());
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Error writing schema catalog " + catalogName + ": " + e.getMessage());
+            return;
         }
+        try (PrintWriter writer = new PrintWriter(filer.createResource(StandardLocation.CLASS_OUTPUT, "",
+                "META-INF/services/" + SchemaCatalog.class.getName()).openWriter())) {
+            writer.println(catalogName);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Error registering schema catalog " + catalogName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Entity collected for the schema catalog.
+     */
+    private record CatalogEntry(TypeElement type, String tableName, String createTableQuery,
+                                List<String> indexQueries, List<String> references) {
     }
 
     @Override
     public Set<String> getSupportedAnnotationTypes() {
-        return Set.of(Table.class.getCanonicalName());
+        return Set.of(Table.class.getCanonicalName(), Index.class.getCanonicalName(),
+                Indexes.class.getCanonicalName());
     }
 
     @Override
@@ -4,3 +4,4 @@ include("persistence")
 include("annotations")
 include("processor")
 include("processor")
+include("benchmarks")